@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The byte ranges read from a resource, in the order they were first read.
+ * Accesses that continue or overlap the previous range are merged into it, so
+ * a trace of a format reader walking a file stays small.
+ *
+ * @author agent
+ */
+class AccessTrace {
+
+	/** Accesses this close to the end of the previous range are merged. */
+	static final int MERGE_GAP = 4096;
+
+	/** Maximum number of ranges recorded. */
+	static final int MAX_RANGES = 4096;
+
+	/** Start and end (exclusive) of each range. */
+	private final List<long[]> ranges = new ArrayList<>();
+
+	/** Records an access of the given number of bytes at the given offset. */
+	synchronized void record(final long offset, final long length) {
+		if (length <= 0) return;
+		if (!ranges.isEmpty()) {
+			final long[] last = ranges.get(ranges.size() - 1);
+			if (offset >= last[0] && offset <= last[1] + MERGE_GAP) {
+				last[1] = Math.max(last[1], offset + length);
+				return;
+			}
+		}
+		if (ranges.size() < MAX_RANGES) {
+			ranges.add(new long[] { offset, offset + length });
+		}
+	}
+
+	/** Gets the recorded ranges as pairs of start and end (exclusive). */
+	synchronized List<long[]> ranges() {
+		final List<long[]> copy = new ArrayList<>(ranges.size());
+		for (final long[] range : ranges) {
+			copy.add(range.clone());
+		}
+		return Collections.unmodifiableList(copy);
+	}
+
+	/**
+	 * Gets the recorded ranges to fetch with as few requests as possible. Ranges
+	 * at most the given gap apart are joined, unless that makes them longer than
+	 * the given length; longer ranges are split. The joined ranges keep the
+	 * order in which their first part was read.
+	 */
+	synchronized List<long[]> coalesced(final long gap, final long maxLength) {
+		final List<Integer> byStart = new ArrayList<>(ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			byStart.add(i);
+		}
+		byStart.sort(Comparator.comparingLong(i -> ranges.get(i)[0]));
+
+		// start, end (exclusive) and first access of each joined range
+		final List<long[]> joined = new ArrayList<>();
+		for (final int i : byStart) {
+			final long[] range = ranges.get(i);
+			final long[] last = joined.isEmpty() ? null : joined.get(joined
+				.size() - 1);
+			if (last != null && range[0] <= last[1] + gap && Math.max(last[1],
+				range[1]) - last[0] <= maxLength)
+			{
+				last[1] = Math.max(last[1], range[1]);
+				last[2] = Math.min(last[2], i);
+			}
+			else joined.add(new long[] { range[0], range[1], i });
+		}
+		joined.sort(Comparator.comparingLong(range -> range[2]));
+
+		final List<long[]> result = new ArrayList<>(joined.size());
+		for (final long[] range : joined) {
+			for (long start = range[0]; start < range[1]; start += maxLength) {
+				result.add(new long[] { start, Math.min(range[1], start +
+					maxLength) });
+			}
+		}
+		return result;
+	}
+
+	synchronized boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+
+	/**
+	 * Writes the trace as variable length integers, each range as the distance
+	 * of its start to the previous start followed by its length.
+	 */
+	synchronized void write(final DataOutputStream out) throws IOException {
+		writeVarLong(out, ranges.size());
+		long previous = 0;
+		for (final long[] range : ranges) {
+			final long delta = range[0] - previous;
+			// NB: zigzag encoding keeps backward jumps short, too
+			writeVarLong(out, (delta << 1) ^ (delta >> 63));
+			writeVarLong(out, range[1] - range[0]);
+			previous = range[0];
+		}
+	}
+
+	/** Reads a trace written by {@link #write(DataOutputStream)}. */
+	static AccessTrace read(final DataInputStream in) throws IOException {
+		final AccessTrace trace = new AccessTrace();
+		final long count = Math.min(readVarLong(in), MAX_RANGES);
+		long previous = 0;
+		for (long i = 0; i < count; i++) {
+			final long zigzag = readVarLong(in);
+			final long start = previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+			final long length = readVarLong(in);
+			trace.ranges.add(new long[] { start, start + length });
+			previous = start;
+		}
+		return trace;
+	}
+
+	// -- Helper methods --
+
+	private static void writeVarLong(final DataOutputStream out, long value)
+		throws IOException
+	{
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(final DataInputStream in)
+		throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = in.readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed access trace");
+	}
+}
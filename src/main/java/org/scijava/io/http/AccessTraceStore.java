@@ -0,0 +1,127 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Stores {@link AccessTrace}s in a directory, one file per version of a
+ * resource.
+ *
+ * @author agent
+ */
+class AccessTraceStore {
+
+	/** Identifies trace files, and their version. */
+	private static final int MAGIC = 0x534a5431;
+
+	private final File directory;
+
+	AccessTraceStore(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Loads the trace recorded for the given version of the resource.
+	 *
+	 * @param version identifies the version, e.g. its entity tag
+	 * @return the trace, or null if there is none
+	 */
+	AccessTrace load(final HttpUrl url, final String version) {
+		final File file = file(url, version);
+		if (!file.exists()) return null;
+		try (final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(file))))
+		{
+			if (in.readInt() != MAGIC) return null;
+			return AccessTrace.read(in);
+		}
+		catch (final IOException exc) {
+			// NB: a damaged trace is as good as none
+			return null;
+		}
+	}
+
+	/** Saves the trace recorded for the given version of the resource. */
+	void save(final HttpUrl url, final String version, final AccessTrace trace)
+		throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can not create directory: " + directory);
+		}
+		final File file = file(url, version);
+		final File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp))))
+			{
+				out.writeInt(MAGIC);
+				trace.write(out);
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	private File file(final HttpUrl url, final String version) {
+		final String key = url.newBuilder().username("").password("").build() +
+			"\n" + version;
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-256").digest(key
+				.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder name = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				name.append(String.format("%02x", hash[i]));
+			}
+			return new File(directory, name.append(".trace").toString());
+		}
+		catch (final NoSuchAlgorithmException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Network {@link Interceptor} that throttles response bodies to a global and a
+ * per-host bandwidth limit.
+ * <p>
+ * Each limit is a token bucket that may run into debt: a reader takes the
+ * bytes it just read from the bucket and then sleeps until the debt it caused
+ * is paid off. Since readers take at most {@link #CHUNK_SIZE} bytes at a time
+ * and queue up behind the debt of earlier readers, concurrent connections get
+ * a fair share of the bandwidth.
+ * </p>
+ *
+ * @author agent
+ */
+class BandwidthLimiter implements Interceptor {
+
+	/** Maximum number of bytes read before the limit is applied. */
+	static final int CHUNK_SIZE = 16 * 1024;
+
+	private final TokenBucket global = new TokenBucket();
+
+	private final ConcurrentMap<String, TokenBucket> hosts =
+		new ConcurrentHashMap<>();
+
+	long getGlobalLimit() {
+		return global.getRate();
+	}
+
+	void setGlobalLimit(final long bytesPerSecond) {
+		global.setRate(bytesPerSecond);
+	}
+
+	long getHostLimit(final String host) {
+		final TokenBucket bucket = hosts.get(host);
+		return bucket == null ? HTTPClientService.UNLIMITED : bucket.getRate();
+	}
+
+	void setHostLimit(final String host, final long bytesPerSecond) {
+		hosts.computeIfAbsent(host, h -> new TokenBucket()).setRate(
+			bytesPerSecond);
+	}
+
+	/**
+	 * Blocks until the given number of bytes from the given host fit into the
+	 * limits.
+	 */
+	void acquire(final String host, final long bytes) throws IOException {
+		long delay = global.take(bytes);
+		final TokenBucket bucket = hosts.get(host);
+		if (bucket != null) delay = Math.max(delay, bucket.take(bytes));
+		if (delay <= 0) return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(delay);
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttled");
+		}
+	}
+
+	// -- Interceptor methods --
+
+	@Override
+	public Response intercept(final Chain chain) throws IOException {
+		final Response response = chain.proceed(chain.request());
+		final ResponseBody body = response.body();
+		if (body == null) return response;
+		final String host = chain.request().url().host();
+		return response.newBuilder().body(new ThrottledBody(body, host)).build();
+	}
+
+	// -- Helper classes --
+
+	/** {@link ResponseBody} whose source is throttled. */
+	private class ThrottledBody extends ResponseBody {
+
+		private final ResponseBody body;
+		private final BufferedSource source;
+
+		private ThrottledBody(final ResponseBody body, final String host) {
+			this.body = body;
+			this.source = Okio.buffer(new ForwardingSource(body.source()) {
+
+				@Override
+				public long read(final Buffer sink, final long byteCount)
+					throws IOException
+				{
+					final long read = super.read(sink, Math.min(byteCount, CHUNK_SIZE));
+					if (read > 0) acquire(host, read);
+					return read;
+				}
+			});
+		}
+
+		@Override
+		public MediaType contentType() {
+			return body.contentType();
+		}
+
+		@Override
+		public long contentLength() {
+			return body.contentLength();
+		}
+
+		@Override
+		public BufferedSource source() {
+			return source;
+		}
+	}
+
+	/**
+	 * Token bucket holding at most one second worth of bytes, whose balance may
+	 * become negative.
+	 */
+	static class TokenBucket {
+
+		private long rate = HTTPClientService.UNLIMITED;
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+
+		synchronized long getRate() {
+			return rate;
+		}
+
+		synchronized void setRate(final long bytesPerSecond) {
+			refill();
+			// NB: a bucket starts out full
+			if (rate == HTTPClientService.UNLIMITED) tokens = bytesPerSecond;
+			rate = Math.max(bytesPerSecond, HTTPClientService.UNLIMITED);
+			tokens = Math.min(tokens, rate);
+		}
+
+		/**
+		 * Takes the given number of tokens.
+		 *
+		 * @return how many nanoseconds the caller has to wait for the balance to
+		 *         become positive again
+		 */
+		synchronized long take(final long count) {
+			if (rate == HTTPClientService.UNLIMITED) return 0;
+			refill();
+			tokens -= count;
+			return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+		}
+
+		private void refill() {
+			final long now = System.nanoTime();
+			if (rate != HTTPClientService.UNLIMITED) {
+				tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+			}
+			lastRefill = now;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Digests of the consecutive fixed-size blocks of a resource, which allow to
+ * verify random accesses without reading the whole resource.
+ *
+ * @author agent
+ */
+public class BlockChecksums {
+
+	private final IntegrityAlgorithm algorithm;
+	private final int blockSize;
+	private final List<byte[]> digests;
+
+	/**
+	 * @param algorithm the algorithm the digests were computed with
+	 * @param blockSize the size of the blocks; only the last block may be
+	 *          shorter
+	 * @param digests the digest of each block, in order
+	 */
+	public BlockChecksums(final IntegrityAlgorithm algorithm,
+		final int blockSize, final List<byte[]> digests)
+	{
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		}
+		this.algorithm = algorithm;
+		this.blockSize = blockSize;
+		this.digests = Collections.unmodifiableList(new ArrayList<>(digests));
+	}
+
+	/**
+	 * Computes the block digests of the given data.
+	 */
+	public static BlockChecksums compute(final IntegrityAlgorithm algorithm,
+		final int blockSize, final InputStream in) throws IOException
+	{
+		final MessageDigest digest = algorithm.newDigest();
+		final List<byte[]> digests = new ArrayList<>();
+		final byte[] buf = new byte[blockSize];
+		while (true) {
+			int n = 0;
+			int r;
+			while (n < blockSize && (r = in.read(buf, n, blockSize - n)) != -1) {
+				n += r;
+			}
+			if (n == 0) break;
+			digest.update(buf, 0, n);
+			digests.add(digest.digest());
+			if (n < blockSize) break;
+		}
+		return new BlockChecksums(algorithm, blockSize, digests);
+	}
+
+	public IntegrityAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/** Gets the number of blocks. */
+	public int size() {
+		return digests.size();
+	}
+
+	/** Gets the digest of the block with the given index. */
+	public byte[] get(final int block) {
+		return digests.get(block);
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of byte arrays that are borrowed for the bodies of responses and
+ * given back once they are not needed anymore, so that steady reading does not
+ * keep allocating short-lived buffers.
+ * <p>
+ * Arrays are pooled in power-of-two sizes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}; larger ones are allocated and dropped as usual. At most
+ * {@link #getLimit()} bytes are kept while not borrowed, arrays given back
+ * beyond that are left to the garbage collector.
+ * </p>
+ * <p>
+ * Buffers that are only nice to have, e.g. for data fetched ahead of time,
+ * should be {@link #reserve(long) reserved} first, so that all of them
+ * together stay within the same limit.
+ * </p>
+ *
+ * @author agent
+ */
+public class BufferPool {
+
+	/** Smallest array handed out. */
+	public static final int MIN_SIZE = 4 * 1024;
+
+	/** Largest array that is pooled. */
+	public static final int MAX_SIZE = 16 * 1024 * 1024;
+
+	/** Default limit of the bytes kept in the pool. */
+	public static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(
+		MIN_SIZE);
+
+	/** Free arrays per size, from {@link #MIN_SIZE} up. */
+	private final Queue<byte[]>[] free;
+
+	private volatile long limit;
+
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong reservedBytes = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+
+	public BufferPool() {
+		this(DEFAULT_LIMIT);
+	}
+
+	/**
+	 * @param limit the number of bytes kept in the pool
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public BufferPool(final long limit) {
+		free = new Queue[Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ConcurrentLinkedQueue<>();
+		}
+		setLimit(limit);
+	}
+
+	// -- BufferPool methods --
+
+	/**
+	 * Borrows an array of at least the given length, which should be given back
+	 * with {@link #release(byte[])}.
+	 */
+	public byte[] acquire(final int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Negative length: " + length);
+		}
+		borrowed.incrementAndGet();
+		final int bucket = bucket(length);
+		if (bucket >= 0) {
+			final byte[] buf = free[bucket].poll();
+			if (buf != null) {
+				pooledBytes.addAndGet(-buf.length);
+				return buf;
+			}
+		}
+		allocated.incrementAndGet();
+		return new byte[bucket < 0 ? length : MIN_SIZE << bucket];
+	}
+
+	/**
+	 * Gives back an array borrowed with {@link #acquire(int)}. It must not be
+	 * used afterwards.
+	 */
+	public void release(final byte[] buf) {
+		final int bucket = bucket(buf.length);
+		if (bucket < 0 || buf.length != MIN_SIZE << bucket) {
+			discarded.incrementAndGet();
+			return;
+		}
+		if (pooledBytes.addAndGet(buf.length) > limit) {
+			pooledBytes.addAndGet(-buf.length);
+			discarded.incrementAndGet();
+			return;
+		}
+		free[bucket].add(buf);
+	}
+
+	/**
+	 * Reserves the given number of bytes for optional buffers, unless that would
+	 * exceed {@link #getLimit()}. Reserved bytes must be given back with
+	 * {@link #unreserve(long)} once the buffers are released.
+	 *
+	 * @return false if there is not enough room left
+	 */
+	public boolean reserve(final long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Negative reservation: " + bytes);
+		}
+		long reserved;
+		do {
+			reserved = reservedBytes.get();
+			if (reserved + bytes > limit) return false;
+		}
+		while (!reservedBytes.compareAndSet(reserved, reserved + bytes));
+		return true;
+	}
+
+	/** Gives back bytes reserved with {@link #reserve(long)}. */
+	public void unreserve(final long bytes) {
+		reservedBytes.addAndGet(-bytes);
+	}
+
+	/** Gets the number of bytes reserved for optional buffers. */
+	public long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	/** Gets the number of bytes kept in the pool at most. */
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets the number of bytes kept in the pool at most. Lowering the limit
+	 * drops free arrays until it is met.
+	 */
+	public void setLimit(final long limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("Negative limit: " + limit);
+		}
+		this.limit = limit;
+		for (int i = free.length - 1; i >= 0 && pooledBytes.get() > limit; i--) {
+			byte[] buf;
+			while (pooledBytes.get() > limit && (buf = free[i].poll()) != null) {
+				pooledBytes.addAndGet(-buf.length);
+			}
+		}
+	}
+
+	/** Gets the number of bytes in free arrays of the pool. */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/** Gets how many arrays were borrowed so far. */
+	public long getBorrowCount() {
+		return borrowed.get();
+	}
+
+	/**
+	 * Gets how many arrays had to be allocated so far, because the pool had no
+	 * free one of the size.
+	 */
+	public long getAllocationCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * Gets how many arrays given back were dropped so far, because the pool was
+	 * full or they were not from it.
+	 */
+	public long getDiscardCount() {
+		return discarded.get();
+	}
+
+	// -- Helper methods --
+
+	/** @return the index of the size class, or -1 if it is not pooled */
+	private static int bucket(final int length) {
+		if (length > MAX_SIZE) return -1;
+		if (length <= MIN_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+	}
+}
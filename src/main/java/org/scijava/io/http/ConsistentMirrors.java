@@ -0,0 +1,84 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+
+/**
+ * The mirrors of an {@link HTTPLocation} that one reader found to serve the
+ * resource it expects.
+ * <p>
+ * Whether a mirror is consistent depends on what the reader has seen before,
+ * e.g. the length of the resource when it was opened, so mirrors are only
+ * left out for that reader. The only url of a location is never left out.
+ * </p>
+ *
+ * @author agent
+ */
+class ConsistentMirrors {
+
+	private final List<HttpUrl> urls;
+	private final Set<HttpUrl> excluded = ConcurrentHashMap.newKeySet();
+
+	ConsistentMirrors(final HTTPLocation location) {
+		this.urls = location.getHttpUrls();
+	}
+
+	/** Gets the urls of the mirrors that were not rejected yet. */
+	List<HttpUrl> urls() {
+		if (excluded.isEmpty()) return urls;
+		final List<HttpUrl> left = new ArrayList<>(urls.size());
+		for (final HttpUrl url : urls) {
+			if (!excluded.contains(url)) left.add(url);
+		}
+		return left;
+	}
+
+	/**
+	 * Wraps a consistency check for
+	 * {@link HTTPClientService#execute(okhttp3.OkHttpClient, okhttp3.Request, List, Predicate)},
+	 * remembering the mirrors whose responses it rejects.
+	 */
+	Predicate<Response> check(final Predicate<Response> consistent) {
+		return response -> {
+			if (consistent.test(response)) return true;
+			if (urls.size() > 1) excluded.add(response.request().url());
+			return false;
+		};
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.scijava.io.location.FileLocation;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+import org.scijava.task.Task;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Default implementation of {@link HTTPClientService}.
+ *
+ * @author agent
+ */
+@Plugin(type = Service.class)
+public class DefaultHTTPClientService extends AbstractService implements
+	HTTPClientService
+{
+
+	/** Longest time to wait for a rate limit to pass, in seconds. */
+	private static final long MAX_RETRY_DELAY = 60;
+
+	/** Number of asynchronous calls the dispatcher runs at once. */
+	private static final int MAX_DISPATCHED = 256;
+
+	/** Size of the ranges fetched by downloads. */
+	private static final int DOWNLOAD_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	private final BandwidthLimiter limiter = new BandwidthLimiter();
+
+	private final RequestScheduler scheduler = new RequestScheduler();
+
+	private final MirrorTracker mirrors = new MirrorTracker();
+
+	private final BufferPool bufferPool = new BufferPool();
+
+	private volatile int maxRateLimitRetries = 3;
+
+	private volatile double hedgePercentile = 0.95;
+
+	private volatile File accessTraceDirectory;
+
+	private OkHttpClient client;
+
+	// -- HTTPClientService methods --
+
+	@Override
+	public synchronized OkHttpClient client() {
+		if (client == null) {
+			// NB: the scheduler limits concurrency, not the dispatcher
+			final Dispatcher dispatcher = new Dispatcher();
+			dispatcher.setMaxRequests(MAX_DISPATCHED);
+			dispatcher.setMaxRequestsPerHost(MAX_DISPATCHED);
+			client = new OkHttpClient.Builder() //
+				.dispatcher(dispatcher) //
+				.addInterceptor(new RateLimitRetryInterceptor()) //
+				.addInterceptor(scheduler) //
+				.addNetworkInterceptor(limiter) //
+				.build();
+		}
+		return client;
+	}
+
+	@Override
+	public long getGlobalBandwidthLimit() {
+		return limiter.getGlobalLimit();
+	}
+
+	@Override
+	public void setGlobalBandwidthLimit(final long bytesPerSecond) {
+		limiter.setGlobalLimit(bytesPerSecond);
+	}
+
+	@Override
+	public long getHostBandwidthLimit(final String host) {
+		return limiter.getHostLimit(host);
+	}
+
+	@Override
+	public void setHostBandwidthLimit(final String host,
+		final long bytesPerSecond)
+	{
+		limiter.setHostLimit(host, bytesPerSecond);
+	}
+
+	@Override
+	public int getMaxRateLimitRetries() {
+		return maxRateLimitRetries;
+	}
+
+	@Override
+	public void setMaxRateLimitRetries(final int retries) {
+		maxRateLimitRetries = retries;
+	}
+
+	@Override
+	public int getMaxConcurrentRequests() {
+		return scheduler.getMaxRunning();
+	}
+
+	@Override
+	public void setMaxConcurrentRequests(final int maxRequests) {
+		scheduler.setMaxRunning(maxRequests);
+		// NB: dispatched calls must never wait in the queue of the dispatcher
+		final Dispatcher dispatcher = client().dispatcher();
+		dispatcher.setMaxRequests(Math.max(MAX_DISPATCHED, maxRequests));
+		dispatcher.setMaxRequestsPerHost(Math.max(MAX_DISPATCHED, maxRequests));
+	}
+
+	@Override
+	public void cancel(final HTTPPriority priority) {
+		scheduler.cancel(priority);
+		final Dispatcher dispatcher = client().dispatcher();
+		for (final Call call : dispatcher.queuedCalls()) {
+			if (RequestScheduler.priority(call.request()) == priority) call.cancel();
+		}
+		for (final Call call : dispatcher.runningCalls()) {
+			if (RequestScheduler.priority(call.request()) == priority) call.cancel();
+		}
+	}
+
+	@Override
+	public void enqueue(final Call call, final Callback callback) {
+		scheduler.enqueue(call, callback);
+	}
+
+	@Override
+	public Response execute(final OkHttpClient client, final Request request,
+		final List<HttpUrl> urls, final Predicate<Response> consistent)
+		throws IOException
+	{
+		return new HedgedCall(client, request, urls, mirrors, scheduler,
+			consistent).execute(hedgePercentile);
+	}
+
+	@Override
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	@Override
+	public void setHedgePercentile(final double percentile) {
+		if (percentile < 0 || percentile > 1) {
+			throw new IllegalArgumentException("Not a percentile: " + percentile);
+		}
+		hedgePercentile = percentile;
+	}
+
+	@Override
+	public File getAccessTraceDirectory() {
+		return accessTraceDirectory;
+	}
+
+	@Override
+	public void setAccessTraceDirectory(final File directory) {
+		accessTraceDirectory = directory;
+	}
+
+	@Override
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	@Override
+	public long download(final HTTPLocation source,
+		final FileLocation destination, final int connections, final Task task)
+		throws IOException
+	{
+		return new ParallelDownload(this, source, destination, connections,
+			DOWNLOAD_CHUNK_SIZE).run(task);
+	}
+
+	// -- Disposable methods --
+
+	@Override
+	public synchronized void dispose() {
+		if (client != null) {
+			client.dispatcher().executorService().shutdown();
+			client.connectionPool().evictAll();
+			client = null;
+		}
+		bufferPool.setLimit(0);
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Repeats requests the server rejected with
+	 * <code>429 Too Many Requests</code>, after waiting as long as the server
+	 * asks in its <code>Retry-After</code> header, or backing off exponentially
+	 * if it does not say.
+	 */
+	private class RateLimitRetryInterceptor implements Interceptor {
+
+		@Override
+		public Response intercept(final Chain chain) throws IOException {
+			Response response = chain.proceed(chain.request());
+			for (int attempt = 0; response.code() == 429 &&
+				attempt < maxRateLimitRetries; attempt++)
+			{
+				final long delay = retryDelay(response, attempt);
+				response.close();
+				log().debug("Rate limited by " + chain.request().url().host() +
+					", retrying in " + delay + " s");
+				try {
+					TimeUnit.SECONDS.sleep(delay);
+				}
+				catch (final InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+						"Interrupted while waiting for rate limit");
+				}
+				response = chain.proceed(chain.request());
+			}
+			return response;
+		}
+
+		/**
+		 * @return the delay in seconds before the given attempt
+		 */
+		private long retryDelay(final Response response, final int attempt) {
+			final String retryAfter = response.header("Retry-After");
+			if (retryAfter != null) {
+				try {
+					return Math.max(0, Math.min(MAX_RETRY_DELAY, Long.parseLong(
+						retryAfter.trim())));
+				}
+				catch (final NumberFormatException exc) {
+					// NB: HTTP dates are not worth parsing; back off instead
+				}
+			}
+			return Math.min(MAX_RETRY_DELAY, 1L << attempt);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.scijava.io.location.FileLocation;
+import org.scijava.service.SciJavaService;
+import org.scijava.task.Task;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Interface for services that manage the HTTP connections of
+ * {@link HTTPHandle}s.
+ * <p>
+ * All handles of a context share one connection pool, and their downloads are
+ * throttled by a global and per-host bandwidth limit which can be changed at
+ * any time.
+ * </p>
+ * <p>
+ * Requests tagged with an {@link HTTPPriority} (see
+ * {@link okhttp3.Request.Builder#tag(Class, Object)}) are scheduled by it when
+ * more than {@link #getMaxConcurrentRequests()} requests are pending.
+ * </p>
+ *
+ * @author agent
+ */
+public interface HTTPClientService extends SciJavaService {
+
+	/** Value of a bandwidth limit that does not limit anything. */
+	long UNLIMITED = 0;
+
+	/**
+	 * Gets the shared client. Clients with different settings should be derived
+	 * from it with {@link OkHttpClient#newBuilder()}, so that they share its
+	 * connection pool, threads and bandwidth limits.
+	 */
+	OkHttpClient client();
+
+	/**
+	 * Gets the total download bandwidth of all connections, in bytes per
+	 * second, or {@link #UNLIMITED}.
+	 */
+	long getGlobalBandwidthLimit();
+
+	/**
+	 * Sets the total download bandwidth of all connections.
+	 *
+	 * @param bytesPerSecond the limit, or {@link #UNLIMITED}
+	 */
+	void setGlobalBandwidthLimit(long bytesPerSecond);
+
+	/**
+	 * Gets the download bandwidth of all connections to the given host, in bytes
+	 * per second, or {@link #UNLIMITED}.
+	 */
+	long getHostBandwidthLimit(String host);
+
+	/**
+	 * Sets the download bandwidth of all connections to the given host.
+	 *
+	 * @param host the host name, as in {@link okhttp3.HttpUrl#host()}
+	 * @param bytesPerSecond the limit, or {@link #UNLIMITED}
+	 */
+	void setHostBandwidthLimit(String host, long bytesPerSecond);
+
+	/**
+	 * Gets how often a request is repeated after the server answered
+	 * <code>429 Too Many Requests</code>.
+	 */
+	int getMaxRateLimitRetries();
+
+	/** Sets how often a rate limited request is repeated before giving up. */
+	void setMaxRateLimitRetries(int retries);
+
+	/**
+	 * Gets how many requests may wait for their response headers at the same
+	 * time. Further requests are queued by priority.
+	 */
+	int getMaxConcurrentRequests();
+
+	/** Sets how many requests may wait for their response at the same time. */
+	void setMaxConcurrentRequests(int maxRequests);
+
+	/**
+	 * Cancels all queued and running requests of the given priority, e.g.
+	 * prefetches that have become stale. Their callers fail with an
+	 * {@link java.io.IOException}.
+	 */
+	void cancel(HTTPPriority priority);
+
+	/**
+	 * Sends a call of the {@link #client()} asynchronously. Unlike
+	 * {@link Call#enqueue(Callback)}, the call waits for its turn by its
+	 * {@link HTTPPriority}, so that it does not queue up behind asynchronous
+	 * calls of lower priority.
+	 */
+	void enqueue(Call call, Callback callback);
+
+	/**
+	 * Executes a request for a resource that is available from several mirrors.
+	 * <p>
+	 * Mirrors are tried in the order of their measured latency. If the fastest
+	 * one does not answer within {@link #getHedgePercentile()} of its usual
+	 * latency, the request is sent to the next mirror as well and whichever
+	 * acceptable response comes first is used.
+	 * </p>
+	 * <p>
+	 * The <code>Authorization</code> header of the request is not passed on;
+	 * each mirror is sent the basic credentials embedded in its own url, if
+	 * any.
+	 * </p>
+	 *
+	 * @param client the client to send the requests with
+	 * @param request the request, whose url is replaced by that of the mirrors
+	 * @param mirrors all urls of the resource
+	 * @param consistent tells whether a successful response is from the same
+	 *          resource as before; mirrors failing the test are not used for
+	 *          this request, see {@link ConsistentMirrors} to remember them
+	 * @return the first acceptable response, or the last unsuccessful one
+	 * @throws IOException if no mirror could be reached
+	 */
+	Response execute(OkHttpClient client, Request request, List<HttpUrl> mirrors,
+		Predicate<Response> consistent) throws IOException;
+
+	/**
+	 * Gets the percentile of a mirror's latency after which requests are also
+	 * sent to the next mirror.
+	 */
+	double getHedgePercentile();
+
+	/**
+	 * Sets the percentile of a mirror's latency after which requests are also
+	 * sent to the next mirror, between 0 and 1.
+	 */
+	void setHedgePercentile(double percentile);
+
+	/**
+	 * Gets the directory in which {@link HTTPHandle}s record the byte ranges
+	 * they read from each resource, or null if they do not.
+	 */
+	File getAccessTraceDirectory();
+
+	/**
+	 * Sets the directory in which {@link HTTPHandle}s record the byte ranges
+	 * they read. When a resource is opened again, the ranges read last time are
+	 * prefetched in parallel as soon as the first response arrived. Traces are
+	 * kept per entity tag, so resources without one are not recorded.
+	 *
+	 * @param directory the directory, or null to disable recording
+	 */
+	void setAccessTraceDirectory(File directory);
+
+	/**
+	 * Gets the pool from which buffers for response bodies are borrowed, e.g.
+	 * by {@link HTTPPagedView}s and prefetches. Its limit caps the memory kept
+	 * for reuse, and the bytes prefetched by all handles together.
+	 */
+	BufferPool getBufferPool();
+
+	/**
+	 * Downloads a resource into a local file, with four connections.
+	 *
+	 * @see #download(HTTPLocation, FileLocation, int, Task)
+	 */
+	default long download(final HTTPLocation source,
+		final FileLocation destination, final Task task) throws IOException
+	{
+		return download(source, destination, 4, task);
+	}
+
+	/**
+	 * Downloads a resource into a local file, fetching several ranges of it at
+	 * once. If the download is interrupted, calling this method again continues
+	 * where it stopped, provided that the resource did not change in the
+	 * meantime; progress is kept in a <code>.journal</code> file next to the
+	 * destination until the download is complete.
+	 *
+	 * @param source the resource to download
+	 * @param destination the file to write
+	 * @param connections how many ranges to fetch at once
+	 * @param task reports progress and throughput, and can cancel the
+	 *          download; may be null
+	 * @return the number of bytes downloaded
+	 * @throws IOException if the download fails or is canceled
+	 */
+	long download(HTTPLocation source, FileLocation destination, int connections,
+		Task task) throws IOException;
+}
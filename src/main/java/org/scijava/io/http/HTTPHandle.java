@@ -30,6 +30,7 @@
 
 package org.scijava.io.http;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -38,11 +39,11 @@ import java.util.concurrent.TimeUnit;
 
 import org.scijava.io.handle.AbstractSeekableStreamHandle;
 import org.scijava.io.handle.DataHandle;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import okhttp3.Authenticator;
 import okhttp3.Credentials;
-import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.OkHttpClient.Builder;
@@ -59,6 +60,24 @@ import okhttp3.Route;
 @Plugin(type = DataHandle.class)
 public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 
+	/** Ranges below this offset are left to the first stream. */
+	private static final long PREFETCH_SKIP = 64 * 1024;
+
+	/** Recorded ranges this close are prefetched with one request. */
+	private static final long PREFETCH_GAP = 64 * 1024;
+
+	/** Size of the buffer for the bytes skipped by forward seeks. */
+	private static final int SKIP_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Shared by handles created without {@link HTTPClientService}, so they do
+	 * not each start their own connection pool and dispatcher.
+	 */
+	private static final OkHttpClient FALLBACK_CLIENT = new OkHttpClient();
+
+	@Parameter(required = false)
+	private HTTPClientService clientService;
+
 	private OkHttpClient client;
 	private Response result;
 	private InputStream resultStream;
@@ -67,9 +86,132 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 	private boolean serverCanResume = true;
 	private boolean useAuthentication = false;
 
+	/** Priority of the requests of this handle. */
+	private HTTPPriority requestPriority = HTTPPriority.NORMAL;
+
 	/** cache for the length of the stream */
 	private long length = -1l;
 
+	/** Entity tag of the first response, to tell whether mirrors agree. */
+	private String etag;
+
+	/** Whether all ways of discovering the length up front were exhausted. */
+	private boolean lengthProbed = false;
+
+	/** Ranges read from the resource, if recorded. */
+	private AccessTrace trace;
+
+	/** Ranges read last time the resource was opened. */
+	private PrefetchCache prefetch;
+
+	/** Whether the stream lags behind the offset, due to prefetched reads. */
+	private boolean streamStale = false;
+
+	/** Integrity checks, disabled by default. */
+	private IntegrityAlgorithm integrityAlgorithm;
+	private HTTPLocation checksumLocation;
+	private byte[] sidecarDigest;
+	private BlockChecksums blockChecksums;
+	private byte[] verifiedDigest;
+	private boolean digestMissing;
+
+	/** Mirrors of the location that serve the resource this handle opened. */
+	private ConsistentMirrors mirrors;
+
+	/** Buffer for the bytes skipped by forward seeks. */
+	private byte[] skipBuffer;
+
+	// -- HTTPHandle methods --
+
+	/**
+	 * Gets the priority with which this handle's requests are scheduled by the
+	 * {@link HTTPClientService}.
+	 */
+	public HTTPPriority getRequestPriority() {
+		return requestPriority;
+	}
+
+	/**
+	 * Sets the priority with which this handle's requests are scheduled. The
+	 * priority applies to all subsequent requests, so it can be changed between
+	 * reads.
+	 */
+	public void setRequestPriority(final HTTPPriority priority) {
+		this.requestPriority = priority;
+	}
+
+	/**
+	 * Gets the algorithm with which the resource is verified, or null if it is
+	 * not.
+	 */
+	public IntegrityAlgorithm getIntegrityAlgorithm() {
+		return integrityAlgorithm;
+	}
+
+	/**
+	 * Enables verification of the whole resource. When a stream that started at
+	 * the beginning of the resource reaches its end, its digest is compared with
+	 * the one declared by the server (see
+	 * {@link IntegrityAlgorithm#find(okhttp3.Headers)}) or by the checksum
+	 * location, and a mismatch fails the read with an {@link IOException}. If no
+	 * digest is declared, a warning is logged and {@link #isVerified()} stays
+	 * false. Applies to streams opened after this call, and stops serving
+	 * prefetched bytes, which are not verified.
+	 *
+	 * @param algorithm the digest algorithm, or null to disable verification
+	 */
+	public void setIntegrityAlgorithm(final IntegrityAlgorithm algorithm) {
+		this.integrityAlgorithm = algorithm;
+		this.verifiedDigest = null;
+		this.digestMissing = false;
+		if (algorithm != null) dropPrefetch();
+	}
+
+	/**
+	 * Checks whether the whole resource was read and matched its digest.
+	 * <p>
+	 * It is not while the resource has not been read from its start to its end,
+	 * nor if no digest was declared by the server or the checksum location, even
+	 * though {@link #setIntegrityAlgorithm} was called.
+	 * </p>
+	 */
+	public boolean isVerified() {
+		return verifiedDigest != null;
+	}
+
+	/**
+	 * Gets the digest the resource was verified with, or null if it was not.
+	 *
+	 * @see #isVerified()
+	 */
+	public byte[] getVerifiedDigest() {
+		return verifiedDigest == null ? null : verifiedDigest.clone();
+	}
+
+	/**
+	 * Sets a sidecar file holding the digest of the resource, e.g. the output
+	 * of <code>sha256sum</code>. It takes precedence over digests declared in
+	 * the response headers.
+	 */
+	public void setChecksumLocation(final HTTPLocation location) {
+		this.checksumLocation = location;
+		this.sidecarDigest = null;
+		this.verifiedDigest = null;
+	}
+
+	/**
+	 * Enables verification of every block that is read from its start to its
+	 * end. Reconnections then start at the beginning of a block, so random
+	 * accesses are verified, too. Prefetched bytes, which are not verified, are
+	 * not served anymore.
+	 *
+	 * @param checksums the digests of the blocks, or null to disable
+	 */
+	public void setBlockChecksums(final BlockChecksums checksums) {
+		this.blockChecksums = checksums;
+		if (checksums != null) dropPrefetch();
+	}
+
 	// -- StreamHandle methods --
 
 	@Override
@@ -79,17 +221,28 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 	}
 
 	@Override
-	public InputStream in() {
+	public InputStream in() throws IOException {
 
-		if (resultStream == null) {
+		if (streamStale) {
+			// NB: recreateStreamFromPos may seek, which must not see a stale stream
+			streamStale = false;
 			try {
-				resultStream = result().body().byteStream();
+				recreateStreamFromPos(offset());
 			}
 			catch (final IOException exc) {
-				log().error("Could not create input stream: ", exc);
-				return null;
+				streamStale = true;
+				throw exc;
 			}
 		}
+		if (resultStream == null) {
+			InputStream stream = result().body().byteStream();
+			if (integrityAlgorithm != null || blockChecksums != null) {
+				stream = new VerifyingInputStream(stream, offset(), length,
+					integrityAlgorithm == null ? null : integrityAlgorithm.newDigest(),
+					expectedDigest(), digest -> verifiedDigest = digest, blockChecksums);
+			}
+			resultStream = new EndTrackingInputStream(stream, offset());
+		}
 		return resultStream;
 	}
 
@@ -99,6 +252,76 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 		return null;
 	}
 
+	@Override
+	public int read() throws IOException {
+		final long pos = offset();
+		if (prefetch != null) {
+			ensureReadable(1);
+			final byte[] b = conversionBuffer();
+			if (prefetch.read(pos, b, 0, 1) == 1) {
+				servedFromPrefetch(pos, 1);
+				return b[0] & 0xff;
+			}
+		}
+		final int b = super.read();
+		if (b != -1 && trace != null) trace.record(pos, 1);
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+		throws IOException
+	{
+		final long pos = offset();
+		if (prefetch != null) {
+			final int n = prefetch.read(pos, b, off, len);
+			if (n > 0) {
+				servedFromPrefetch(pos, n);
+				return n;
+			}
+		}
+		final int n = super.read(b, off, len);
+		if (n > 0 && trace != null) trace.record(pos, n);
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// NB: do not use in(), which would open a stream just to close it
+		if (prefetch != null) prefetch.cancel();
+		if (trace != null && !trace.isEmpty() && etag != null) {
+			try {
+				traceStore().save(get().getHttpUrl(), etag, trace);
+			}
+			catch (final IOException exc) {
+				log().warn("Could not save access trace: ", exc);
+			}
+		}
+		if (resultStream != null) resultStream.close();
+		if (result != null) result.close();
+		resultStream = null;
+		result = null;
+		if (skipBuffer != null && clientService != null) {
+			clientService.getBufferPool().release(skipBuffer);
+		}
+		skipBuffer = null;
+	}
+
+	// -- SeekableStreamHandle methods --
+
+	@Override
+	public void seek(final long pos) throws IOException {
+		// NB: the stream catches up on demand, see in()
+		if (streamStale || pos != offset() && prefetch != null && prefetch.covers(
+			pos))
+		{
+			streamStale = true;
+			setOffset(pos);
+			return;
+		}
+		super.seek(pos);
+	}
+
 	// -- DataHandle methods --
 
 	@Override
@@ -125,25 +348,23 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 
 	@Override
 	public long length() throws IOException {
-		if (length == -1l) { // not cached yet
-
-			if (result().code() == 206) { // partial request
-				/*
-				 * NB: Layout of content range header:
-				 *
-				 * Content-Range: bytes start-end/length-of-file
-				 */
-				final String range = result.header("Content-Range");
-				length = Integer.parseInt(range.substring(range.lastIndexOf('/') + 1));
-
-			}
-			else if (result().code() == 200) {
-				length = result().body().contentLength();
-			}
+		if (length == -1l && !lengthProbed) { // not cached yet
+			length = lengthFromResponse(result());
+			if (length == -1l) length = lengthFromHead();
+			if (length == -1l && serverCanResume) length = lengthFromSuffixRange();
+			// NB: if still unknown, the length is set once the stream hits EOF
+			lengthProbed = true;
 		}
 		return length;
 	}
 
+	@Override
+	public long available(final long count) throws IOException {
+		// NB: with an unknown length we can only find the end by reading it
+		if (length() == -1l) return count;
+		return super.available(count);
+	}
+
 	@Override
 	public void setLength(final long length) throws IOException {
 		// NB: not supported
@@ -160,6 +381,94 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 
 	// -- Helper methods --
 
+	/**
+	 * Extracts the total length of the resource from a response.
+	 *
+	 * @return the total length, or -1 if the response does not declare it
+	 */
+	private static long lengthFromResponse(final Response response) {
+		if (response.code() == 206) { // partial request
+			return parseContentRangeLength(response.header("Content-Range"));
+		}
+		if (response.code() == 200) {
+			return response.body().contentLength();
+		}
+		return -1l;
+	}
+
+	/**
+	 * Parses the total length from a content range header.
+	 * <p>
+	 * NB: Layout of content range header:
+	 * </p>
+	 *
+	 * <pre>
+	 * Content-Range: bytes start-end/length-of-file
+	 * Content-Range: bytes start-end/*
+	 * </pre>
+	 *
+	 * @return the total length, or -1 if it is absent or unknown (<code>*</code>)
+	 */
+	static long parseContentRangeLength(final String range) {
+		if (range == null) return -1l;
+		final String total = range.substring(range.lastIndexOf('/') + 1).trim();
+		if (total.isEmpty() || "*".equals(total)) return -1l;
+		try {
+			return Long.parseLong(total);
+		}
+		catch (final NumberFormatException exc) {
+			return -1l;
+		}
+	}
+
+	/**
+	 * Asks the server for the length with a HEAD request.
+	 *
+	 * @return the length, or -1 if the server does not report it
+	 */
+	private long lengthFromHead() throws IOException {
+		final Request request = newRequest().head().header("Accept-Encoding",
+			"identity").build();
+		try (final Response response = execute(request)) {
+			if (!response.isSuccessful()) return -1l;
+			final String contentLength = response.header("Content-Length");
+			if (contentLength == null) return -1l;
+			return Long.parseLong(contentLength.trim());
+		}
+		catch (final NumberFormatException exc) {
+			return -1l;
+		}
+	}
+
+	/**
+	 * Requests the last byte of the resource, whose content range header then
+	 * reveals the total length.
+	 *
+	 * @return the length, or -1 if the server does not report it
+	 */
+	private long lengthFromSuffixRange() throws IOException {
+		final Request request = newRequest().header("Range", "bytes=-1").build();
+		try (final Response response = execute(request)) {
+			if (response.code() != 206) return -1l;
+			return parseContentRangeLength(response.header("Content-Range"));
+		}
+	}
+
+	/**
+	 * @return a GET request for the location, carrying the credentials and the
+	 *         priority of this handle
+	 */
+	private Request.Builder newRequest() {
+		final HttpUrl httpUrl = get().getHttpUrl();
+		final Request.Builder builder = new Request.Builder().url(httpUrl).get()
+			.tag(HTTPPriority.class, requestPriority);
+		if (useAuthentication) {
+			builder.header("Authorization", Credentials.basic(httpUrl.username(),
+				httpUrl.password()));
+		}
+		return builder;
+	}
+
 	/**
 	 * @return the response
 	 * @throws IOException
@@ -167,9 +476,10 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 	private Response result() throws IOException {
 
 		if (result == null) {
-			final Request request = new Request.Builder().url(get().getHttpUrl())
-				.get().header("Range", "bytes=0-").build();
-			result = client().newCall(request).execute();
+			final Request request = newRequest().header("Range", "bytes=0-")
+				.build();
+			result = execute(request);
+			etag = result.header("ETag");
 
 			// check result
 			if (result.code() == 200) {
@@ -181,19 +491,143 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 			else {
 				final int code = result.code();
 				// We set this to null to ensure we will try again later
+				result.close();
 				this.result = null;
 				throw new IOException("HTTP connection failure, errorcode: " + code);
 			}
+			// NB: remember the length, to check later responses against it
+			if (length == -1l) length = lengthFromResponse(result);
+			startTracing();
 		}
 		return result;
 	}
 
 	/**
-	 * @return the client
+	 * Starts to record the accessed ranges if enabled, and prefetches those
+	 * recorded last time.
+	 */
+	private void startTracing() {
+		if (clientService == null || clientService
+			.getAccessTraceDirectory() == null || etag == null)
+		{
+			return;
+		}
+		trace = new AccessTrace();
+		final AccessTrace recorded = traceStore().load(get().getHttpUrl(), etag);
+		if (recorded == null || !serverCanResume) return;
+		// NB: prefetched bytes bypass the integrity checks of the stream
+		if (integrityAlgorithm != null || blockChecksums != null) return;
+
+		prefetch = new PrefetchCache(clientService);
+		for (final long[] range : recorded.coalesced(PREFETCH_GAP,
+			BufferPool.MAX_SIZE))
+		{
+			// NB: the first stream reads the beginning anyway
+			if (range[1] <= PREFETCH_SKIP) continue;
+			final long start = Math.max(range[0], PREFETCH_SKIP);
+			// NB: prefetches must not hold up the reads of this or other handles
+			final Request request = newRequest().header("Range", "bytes=" + start +
+				"-" + (range[1] - 1)).tag(HTTPPriority.class,
+					HTTPPriority.BACKGROUND).build();
+			// NB: smaller ranges further on may still fit
+			prefetch.add(start, (int) (range[1] - start), client().newCall(
+				request));
+		}
+	}
+
+	/**
+	 * @return the buffer into which skipped bytes are read, borrowed from the
+	 *         {@link HTTPClientService#getBufferPool()} until the handle is
+	 *         closed
+	 */
+	private byte[] skipBuffer() {
+		if (skipBuffer == null) {
+			skipBuffer = clientService == null ? new byte[SKIP_BUFFER_SIZE]
+				: clientService.getBufferPool().acquire(SKIP_BUFFER_SIZE);
+		}
+		return skipBuffer;
+	}
+
+	/** Cancels the prefetches, and serves all further reads from the stream. */
+	private void dropPrefetch() {
+		if (prefetch == null) return;
+		prefetch.cancel();
+		prefetch = null;
+	}
+
+	private AccessTraceStore traceStore() {
+		return new AccessTraceStore(clientService.getAccessTraceDirectory());
+	}
+
+	/** Advances past bytes read from the prefetched ranges. */
+	private void servedFromPrefetch(final long pos, final int n) {
+		if (trace != null) trace.record(pos, n);
+		streamStale = true;
+		setOffset(pos + n);
+	}
+
+	/**
+	 * @return the expected digest of the resource, or null if it is unknown
+	 */
+	private byte[] expectedDigest() throws IOException {
+		if (integrityAlgorithm == null) return null;
+		if (checksumLocation != null) {
+			if (sidecarDigest == null) {
+				final Request request = new Request.Builder().url(checksumLocation
+					.getHttpUrl()).tag(HTTPPriority.class, requestPriority).build();
+				try (final Response response = client().newCall(request).execute()) {
+					if (!response.isSuccessful()) {
+						throw new IOException("Could not read checksum, errorcode: " +
+							response.code());
+					}
+					sidecarDigest = integrityAlgorithm.decode(response.body().string());
+				}
+			}
+			return sidecarDigest;
+		}
+		final byte[] digest = integrityAlgorithm.find(result().headers());
+		if (digest == null && !digestMissing) {
+			// NB: once per handle, not for every reconnection
+			digestMissing = true;
+			log().warn("No " + integrityAlgorithm + " digest declared for " + get()
+				.getURI() + ", the resource is not verified");
+		}
+		return digest;
+	}
+
+	/**
+	 * Executes the request, trying mirrors of the location if there are any.
+	 */
+	private Response execute(final Request request) throws IOException {
+		if (clientService == null || get().getMirrors().isEmpty()) {
+			return client().newCall(request).execute();
+		}
+		if (mirrors == null) mirrors = new ConsistentMirrors(get());
+		return clientService.execute(client(), request, mirrors.urls(), mirrors
+			.check(this::isConsistent));
+	}
+
+	/**
+	 * Checks whether a response is from the same resource as the responses seen
+	 * before. If the entity tags do not match, e.g. because the mirrors use
+	 * different servers, the lengths have to.
+	 */
+	private boolean isConsistent(final Response response) {
+		final String responseTag = response.header("ETag");
+		if (etag != null && etag.equals(responseTag)) return true;
+		if ("HEAD".equals(response.request().method())) return true;
+		final long responseLength = lengthFromResponse(response);
+		return length == -1l || responseLength == -1l || length == responseLength;
+	}
+
+	/**
+	 * @return the client, derived from the shared one of the
+	 *         {@link HTTPClientService} if available
 	 */
 	private OkHttpClient client() {
 		if (client == null) {
-			final Builder clientBuilder = new OkHttpClient.Builder();
+			final Builder clientBuilder = clientService == null ? FALLBACK_CLIENT
+				.newBuilder() : clientService.client().newBuilder();
 			clientBuilder.connectTimeout(get().getTimeout(), TimeUnit.MILLISECONDS);
 
 			// Add authentication support
@@ -212,7 +646,7 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 						// fail after max tries
 						return null;
 					}
-					final HttpUrl url = get().getHttpUrl();
+					final HttpUrl url = response.request().url();
 					final String credential = Credentials.basic(url.username(), url
 						.password());
 					return response.request().newBuilder().header("Authorization",
@@ -246,23 +680,12 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 	@Override
 	public void recreateStreamFromPos(final long pos) throws IOException {
 
-		// create the headers
-
-		final HttpUrl httpUrl = get().getHttpUrl();
-		final okhttp3.Headers.Builder headersBuilder = new Headers.Builder();
-
-		//
-		headersBuilder.add("Range", "bytes=" + pos + "-");
-
-		if (useAuthentication) {
-			final String credentials = Credentials.basic(httpUrl.username(), httpUrl
-				.password());
-			headersBuilder.add("Authorization", credentials);
-		}
-
-		final Request request = new Request.Builder().url(httpUrl).get().headers(
-			headersBuilder.build()).build();
-		final Response tmpResult = client().newCall(request).execute();
+		// NB: start at a block boundary, so the first block can be verified
+		final long start = blockChecksums == null ? pos : pos - pos %
+			blockChecksums.getBlockSize();
+		final Request request = newRequest().header("Range", "bytes=" + start +
+			"-").build();
+		final Response tmpResult = execute(request);
 
 		// test if we got the correct range
 		if (tmpResult.code() == 200) {
@@ -271,6 +694,7 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 
 			if (offset() < pos) {
 				// discard result, instead seek in original stream
+				tmpResult.close();
 				seek(pos);
 			}
 			else {
@@ -284,9 +708,12 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 		else if (tmpResult.code() == 206) {
 			// server supports resume, we are at the correct position
 			setNewResult(tmpResult);
+			setOffset(start);
+			if (start < pos) jump(pos - start);
 			setOffset(pos);
 		}
 		else {
+			tmpResult.close();
 			throw new IOException("HTTP connection failure, errorcode: " + tmpResult
 				.code());
 		}
@@ -300,10 +727,14 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 	 * @throws IOException if the input stream can't be closed
 	 */
 	private void setNewResult(final Response result) throws IOException {
-		this.result = result;
 		if (resultStream != null) {
 			resultStream.close();
 		}
+		// NB: the old response holds a connection even if it was never read
+		if (this.result != null) {
+			this.result.close();
+		}
+		this.result = result;
 		resultStream = null;
 	}
 
@@ -311,4 +742,56 @@ public class HTTPHandle extends AbstractSeekableStreamHandle<HTTPLocation> {
 	protected boolean recreatePossible() throws IOException {
 		return serverCanResume;
 	}
+
+	// -- Helper classes --
+
+	/**
+	 * Input stream that records the length of the resource once the end of the
+	 * stream is reached, for servers that do not declare it up front.
+	 */
+	private class EndTrackingInputStream extends FilterInputStream {
+
+		/** Position of the stream within the resource. */
+		private long pos;
+
+		private EndTrackingInputStream(final InputStream in, final long start) {
+			super(in);
+			this.pos = start;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b == -1) reachedEnd();
+			else pos++;
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+			throws IOException
+		{
+			final int r = super.read(b, off, len);
+			if (r == -1) reachedEnd();
+			else pos += r;
+			return r;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			// NB: InputStream#skip would allocate a buffer on every seek
+			final byte[] buf = skipBuffer();
+			long skipped = 0;
+			while (skipped < n) {
+				final int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+				if (r == -1) break;
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		private void reachedEnd() {
+			if (length == -1l) length = pos;
+		}
+	}
 }
@@ -34,6 +34,9 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -41,9 +44,14 @@ import org.scijava.io.location.AbstractRemoteLocation;
 import org.scijava.io.location.Location;
 
 import okhttp3.HttpUrl;
+import okhttp3.Request;
 
 /**
  * A {@link Location} that can be accessed via HTTP. backed by an {@link URL}.
+ * <p>
+ * The same resource may also be available from mirrors, which
+ * {@link HTTPHandle}s use to work around slow or failing servers.
+ * </p>
  *
  * @author Curtis Rueden
  * @author Gabriel Einsdorf
@@ -53,6 +61,9 @@ public class HTTPLocation extends AbstractRemoteLocation {
 	/** The url representing this location. */
 	private final HttpUrl url;
 
+	/** Alternative urls serving the same resource. */
+	private final List<HttpUrl> mirrors;
+
 	public HTTPLocation(final URI uri, final String username,
 		final String password) throws URISyntaxException
 	{
@@ -63,6 +74,7 @@ public class HTTPLocation extends AbstractRemoteLocation {
 		if ("http".equals(scheme) || "https".equals(scheme)) {
 			this.url = HttpUrl.get(uri).newBuilder().username(username).password(
 				password).build();
+			this.mirrors = Collections.emptyList();
 		}
 		else {
 			throw new URISyntaxException(uri.toString(),
@@ -87,7 +99,20 @@ public class HTTPLocation extends AbstractRemoteLocation {
 	 * @param url the http url of the location
 	 */
 	public HTTPLocation(final HttpUrl url) {
+		this(url, Collections.emptyList());
+	}
+
+	/**
+	 * Creates an HTTPLocation for a resource that is mirrored on several
+	 * servers.
+	 *
+	 * @param url the http url of the location
+	 * @param mirrors alternative urls of the same resource, in the order of
+	 *          preference
+	 */
+	public HTTPLocation(final HttpUrl url, final Collection<HttpUrl> mirrors) {
 		this.url = url;
+		this.mirrors = Collections.unmodifiableList(new ArrayList<>(mirrors));
 	}
 
 	/**
@@ -101,6 +126,7 @@ public class HTTPLocation extends AbstractRemoteLocation {
 	{
 		this.url = HttpUrl.parse(url).newBuilder().username(username).password(
 			password).build();
+		this.mirrors = Collections.emptyList();
 	}
 
 	/**
@@ -127,6 +153,28 @@ public class HTTPLocation extends AbstractRemoteLocation {
 		return url;
 	}
 
+	/** Gets the alternative urls of the resource, in the order of preference. */
+	public List<HttpUrl> getMirrors() {
+		return mirrors;
+	}
+
+	/** Gets the backing url followed by the urls of all mirrors. */
+	public List<HttpUrl> getHttpUrls() {
+		final List<HttpUrl> urls = new ArrayList<>(mirrors.size() + 1);
+		urls.add(url);
+		urls.addAll(mirrors);
+		return urls;
+	}
+
+	/**
+	 * Creates a GET request for this location with the given priority. It
+	 * carries no credentials; {@link HTTPClientService#execute} adds those of
+	 * each url it is sent to.
+	 */
+	Request.Builder newRequest(final HTTPPriority priority) {
+		return new Request.Builder().url(url).tag(HTTPPriority.class, priority);
+	}
+
 	// -- Location methods --
 
 	/**
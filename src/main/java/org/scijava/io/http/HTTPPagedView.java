@@ -0,0 +1,314 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Thread-safe random access to an {@link HTTPLocation}, for readers that fetch
+ * chunks of one large resource from many threads.
+ * <p>
+ * Unlike an {@link HTTPHandle}, the view has no position: every read states
+ * where it starts. The resource is fetched in pages with range requests, on
+ * demand. Threads reading the same page share one request, and recently used
+ * pages are kept in memory, in buffers borrowed from the
+ * {@link HTTPClientService#getBufferPool()}.
+ * </p>
+ *
+ * @author agent
+ */
+public class HTTPPagedView implements AutoCloseable {
+
+	/** Default size of a page. */
+	public static final int DEFAULT_PAGE_SIZE = 256 * 1024;
+
+	/** Default number of pages kept in memory. */
+	public static final int DEFAULT_MAX_PAGES = 256;
+
+	private final HTTPClientService clientService;
+	private final BufferPool pool;
+	private final HTTPLocation location;
+	private final ConsistentMirrors mirrors;
+	private final int pageSize;
+	private final int maxPages;
+
+	private final ConcurrentMap<Long, Page> pages = new ConcurrentHashMap<>();
+
+	/** Order in which pages are considered for eviction. */
+	private final Queue<Long> clock = new ConcurrentLinkedQueue<>();
+
+	private volatile long length = -1;
+	private volatile HTTPPriority requestPriority = HTTPPriority.NORMAL;
+
+	/**
+	 * Creates a view with {@link #DEFAULT_PAGE_SIZE} and
+	 * {@link #DEFAULT_MAX_PAGES}.
+	 */
+	public HTTPPagedView(final HTTPClientService clientService,
+		final HTTPLocation location)
+	{
+		this(clientService, location, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+	}
+
+	/**
+	 * @param clientService the service sending the requests
+	 * @param location the resource to read
+	 * @param pageSize the number of bytes fetched at once
+	 * @param maxPages the number of pages kept in memory
+	 */
+	public HTTPPagedView(final HTTPClientService clientService,
+		final HTTPLocation location, final int pageSize, final int maxPages)
+	{
+		if (pageSize < 1 || maxPages < 1) {
+			throw new IllegalArgumentException("Invalid page size or count: " +
+				pageSize + ", " + maxPages);
+		}
+		this.clientService = clientService;
+		this.pool = clientService.getBufferPool();
+		this.location = location;
+		this.mirrors = new ConsistentMirrors(location);
+		this.pageSize = pageSize;
+		this.maxPages = maxPages;
+	}
+
+	public HTTPLocation getLocation() {
+		return location;
+	}
+
+	/** Sets the priority with which pages are requested from now on. */
+	public void setRequestPriority(final HTTPPriority priority) {
+		this.requestPriority = priority;
+	}
+
+	/**
+	 * Gets the length of the resource, fetching the first page if it is not
+	 * known yet.
+	 */
+	public long length() throws IOException {
+		if (length == -1) page(0).release(pool);
+		return length;
+	}
+
+	/**
+	 * Reads bytes starting at the given position of the resource into the
+	 * buffer, up to its limit or the end of the resource.
+	 *
+	 * @return the number of bytes read, or -1 if the position is at or after
+	 *         the end of the resource
+	 */
+	public int read(final long pos, final ByteBuffer dst) throws IOException {
+		if (pos < 0) throw new IllegalArgumentException("Negative position: " + pos);
+		if (pos >= length()) return -1;
+		int read = 0;
+		long p = pos;
+		while (dst.hasRemaining() && p < length) {
+			final Page page = page(p / pageSize);
+			final int n;
+			try {
+				final int offset = (int) (p % pageSize);
+				n = Math.min(dst.remaining(), page.size - offset);
+				if (n > 0) dst.put(page.buf, offset, n);
+			}
+			finally {
+				page.release(pool);
+			}
+			if (n <= 0) break;
+			read += n;
+			p += n;
+		}
+		return read;
+	}
+
+	/** Drops all pages from memory. */
+	@Override
+	public void close() {
+		for (final Long index : pages.keySet()) {
+			final Page page = pages.remove(index);
+			if (page != null) page.release(pool);
+		}
+		clock.clear();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Gets a page, fetching it unless another thread already does. The page has
+	 * to be released once it was read.
+	 */
+	private Page page(final long index) throws IOException {
+		while (true) {
+			Page page = pages.get(index);
+			if (page == null) {
+				final Page fresh = new Page();
+				page = pages.putIfAbsent(index, fresh);
+				if (page == null) {
+					page = fresh;
+					clock.add(index);
+					evict();
+					fetch(index, fresh);
+				}
+			}
+			// NB: the page was evicted in the meantime, and its buffer given back
+			if (!page.retain()) continue;
+			page.referenced = true;
+			try {
+				page.data.get();
+				return page;
+			}
+			catch (final InterruptedException exc) {
+				page.release(pool);
+				Thread.currentThread().interrupt();
+				throw new IOException(exc);
+			}
+			catch (final ExecutionException exc) {
+				page.release(pool);
+				// NB: let the next reader try again
+				pages.remove(index, page);
+				final Throwable cause = exc.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				throw new IOException(cause);
+			}
+		}
+	}
+
+	private void fetch(final long index, final Page page) {
+		final long start = index * pageSize;
+		final long expected = length;
+		final Request request = location.newRequest(requestPriority).header(
+			"Range", "bytes=" + start + "-" + (start + pageSize - 1)).build();
+		final Predicate<Response> consistent = r -> expected == -1 || r
+			.code() != 206 || HTTPHandle.parseContentRangeLength(r.header(
+				"Content-Range")) == expected;
+		try (final Response response = clientService.execute(clientService
+			.client(), request, mirrors.urls(), mirrors.check(consistent)))
+		{
+			if (response.code() != 206) {
+				throw new IOException(response.code() == 200
+					? "Server does not support range requests: " + location.getURI()
+					: "HTTP connection failure, errorcode: " + response.code());
+			}
+			final long total = HTTPHandle.parseContentRangeLength(response.header(
+				"Content-Range"));
+			if (total == -1) {
+				throw new IOException("Unknown length of " + location.getURI());
+			}
+			length = total;
+			final byte[] buf = pool.acquire(pageSize);
+			int size = 0;
+			try {
+				final BufferedSource source = response.body().source();
+				int n;
+				while (size < pageSize && (n = source.read(buf, size, pageSize -
+					size)) != -1)
+				{
+					size += n;
+				}
+			}
+			catch (final IOException | RuntimeException exc) {
+				pool.release(buf);
+				throw exc;
+			}
+			page.buf = buf;
+			page.size = size;
+			page.data.complete(null);
+		}
+		catch (final IOException | RuntimeException exc) {
+			page.data.completeExceptionally(exc);
+		}
+	}
+
+	/**
+	 * Drops pages until at most {@code maxPages} are left, sparing those used
+	 * since the last pass of the clock.
+	 */
+	private void evict() {
+		int budget = 2 * pages.size();
+		while (pages.size() > maxPages && budget-- > 0) {
+			final Long index = clock.poll();
+			if (index == null) return;
+			final Page page = pages.get(index);
+			if (page == null) continue;
+			if (page.referenced || !page.data.isDone()) {
+				page.referenced = false;
+				clock.add(index);
+			}
+			else if (pages.remove(index, page)) {
+				page.release(pool);
+			}
+		}
+	}
+
+	// -- Helper classes --
+
+	private static class Page {
+
+		/** Completes once the buffer holds the page. */
+		private final CompletableFuture<Void> data = new CompletableFuture<>();
+
+		/** Held by the view while it keeps the page, and by each reader. */
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private volatile byte[] buf;
+		private int size;
+		private volatile boolean referenced;
+
+		/** @return false if the page was dropped already */
+		private boolean retain() {
+			int count;
+			do {
+				count = references.get();
+				if (count == 0) return false;
+			}
+			while (!references.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		/** Gives the buffer back to the pool once no one holds the page. */
+		private void release(final BufferPool pool) {
+			if (references.decrementAndGet() == 0 && buf != null) {
+				pool.release(buf);
+			}
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Sends one request to several mirrors of a resource, to cut the latency of
+ * slow servers short.
+ * <p>
+ * The request goes to the best ranked mirror first. If it has not answered
+ * once the chosen percentile of its usual latency has passed, the request is
+ * also sent to the next mirror, and the first acceptable response wins; the
+ * other call is cancelled. Mirrors that fail, or whose response is rejected
+ * as inconsistent, are replaced by the next one in line. Rejections only
+ * apply to this call; callers remember them, see {@link ConsistentMirrors}.
+ * </p>
+ *
+ * @author agent
+ */
+class HedgedCall {
+
+	/** Hedging delay while a server has too few latency samples, in ms. */
+	static final long DEFAULT_HEDGE_DELAY = 1000;
+
+	private final OkHttpClient client;
+	private final Request request;
+	private final MirrorTracker tracker;
+	private final RequestScheduler scheduler;
+	private final Predicate<Response> consistent;
+	private final List<HttpUrl> ranked;
+
+	private final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+	/** Calls which have not reported yet, with the mirrors they were sent to. */
+	private final Map<Call, HttpUrl> pending = new HashMap<>();
+	private boolean decided;
+	private long start;
+
+	/**
+	 * @param client the client sending the requests
+	 * @param request the request, whose url is replaced by those of the mirrors
+	 * @param mirrors all urls of the resource
+	 * @param tracker the latency statistics of the mirrors
+	 * @param scheduler the scheduler queueing the calls by priority
+	 * @param consistent tells whether a successful response is from the expected
+	 *          resource
+	 */
+	HedgedCall(final OkHttpClient client, final Request request,
+		final List<HttpUrl> mirrors, final MirrorTracker tracker,
+		final RequestScheduler scheduler, final Predicate<Response> consistent)
+	{
+		this.client = client;
+		this.request = request;
+		this.tracker = tracker;
+		this.scheduler = scheduler;
+		this.consistent = consistent;
+		this.ranked = tracker.rank(mirrors);
+	}
+
+	/**
+	 * Executes the request.
+	 *
+	 * @param percentile the latency percentile after which the request is hedged
+	 * @return the winning response, or the last failed one if no mirror
+	 *         succeeded
+	 * @throws IOException if no mirror answered at all
+	 */
+	Response execute(final double percentile) throws IOException {
+		if (ranked.isEmpty()) {
+			throw new IOException("No consistent mirror left for " + request.url());
+		}
+
+		int next = 0;
+		int pending = 0;
+		boolean hedged = false;
+		Response failure = null;
+		IOException error = null;
+
+		final long delay = hedgeDelay(ranked.get(0), percentile);
+		start = System.nanoTime();
+		send(ranked.get(next++));
+		pending++;
+
+		try {
+			while (pending > 0) {
+				final Outcome outcome = hedged || next >= ranked.size() ? outcomes
+					.take() : outcomes.poll(delay, TimeUnit.MILLISECONDS);
+				if (outcome == null) {
+					// too slow; ask the next mirror as well
+					hedged = true;
+					send(ranked.get(next++));
+					pending++;
+					continue;
+				}
+				pending--;
+
+				final Response response = outcome.response;
+				if (response != null && response.isSuccessful()) {
+					if (consistent.test(response)) {
+						decide(outcome.call);
+						if (failure != null) failure.close();
+						return response;
+					}
+					response.close();
+					error = new IOException("Mirror is inconsistent: " + outcome.url);
+				}
+				else if (response != null) {
+					if (failure != null) failure.close();
+					failure = response;
+				}
+				else {
+					error = outcome.error;
+				}
+
+				if (pending == 0 && next < ranked.size()) {
+					// fail over to the next mirror
+					send(ranked.get(next++));
+					pending++;
+				}
+			}
+		}
+		catch (final InterruptedException exc) {
+			decide(null);
+			if (failure != null) failure.close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for mirrors");
+		}
+
+		decide(null);
+		if (failure != null) return failure;
+		throw error;
+	}
+
+	// -- Helper methods --
+
+	private long hedgeDelay(final HttpUrl url, final double percentile) {
+		final long latency = tracker.percentile(url, percentile);
+		return latency < 0 ? DEFAULT_HEDGE_DELAY : latency;
+	}
+
+	private synchronized void send(final HttpUrl url) {
+		final long sent = System.nanoTime();
+		final Call call = client.newCall(forMirror(url));
+		pending.put(call, url);
+		scheduler.enqueue(call, new Callback() {
+
+			@Override
+			public void onResponse(final Call c, final Response response) {
+				report(new Outcome(c, url, response, null), elapsed(sent));
+			}
+
+			@Override
+			public void onFailure(final Call c, final IOException exc) {
+				report(new Outcome(c, url, null, exc), elapsed(sent));
+			}
+		});
+	}
+
+	/**
+	 * Rewrites the request for the given mirror. Credentials are never passed
+	 * on to other hosts; each mirror gets those embedded in its own url, if any.
+	 */
+	private Request forMirror(final HttpUrl url) {
+		final Request.Builder builder = request.newBuilder().url(url)
+			.removeHeader("Authorization");
+		if (!url.username().isEmpty()) {
+			builder.header("Authorization", Credentials.basic(url.username(), url
+				.password()));
+		}
+		return builder.build();
+	}
+
+	private synchronized void report(final Outcome outcome, final long millis) {
+		// NB: calls cancelled by decide(null) were recorded there already
+		if (pending.remove(outcome.call) != null) tracker.record(outcome.url,
+			millis);
+		if (!decided) outcomes.add(outcome);
+		else if (outcome.response != null) outcome.response.close();
+	}
+
+	/**
+	 * Cancels all calls but the winner and closes their responses.
+	 * <p>
+	 * Cancelled calls are recorded as slower than the whole hedged call took so
+	 * far, since they had not answered by then. This happens before the winner
+	 * is returned, so that the next call already ranks them accordingly.
+	 * </p>
+	 *
+	 * @param winner the call whose response is used, or null
+	 */
+	private synchronized void decide(final Call winner) {
+		decided = true;
+		final long millis = elapsed(start) + 1;
+		for (final Map.Entry<Call, HttpUrl> entry : pending.entrySet()) {
+			if (entry.getKey() == winner) continue;
+			entry.getKey().cancel();
+			tracker.recordCancelled(entry.getValue(), millis);
+		}
+		pending.clear();
+		for (final Outcome outcome : outcomes) {
+			if (outcome.response != null) outcome.response.close();
+		}
+		outcomes.clear();
+	}
+
+	private static long elapsed(final long start) {
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+
+	// -- Helper classes --
+
+	private static class Outcome {
+
+		private final Call call;
+		private final HttpUrl url;
+		private final Response response;
+		private final IOException error;
+
+		private Outcome(final Call call, final HttpUrl url,
+			final Response response, final IOException error)
+		{
+			this.call = call;
+			this.url = url;
+			this.response = response;
+			this.error = error;
+		}
+	}
+}
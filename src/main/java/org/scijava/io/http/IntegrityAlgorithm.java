@@ -0,0 +1,243 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Checksum;
+
+import okhttp3.Headers;
+
+/**
+ * Digest algorithms with which {@link HTTPHandle}s can verify the integrity of
+ * the bytes they read.
+ *
+ * @author agent
+ */
+public enum IntegrityAlgorithm {
+
+	MD5("MD5", "md5"), //
+	SHA_256("SHA-256", "sha-256"), //
+	CRC32C("CRC32C", "crc32c");
+
+	private final String javaName;
+	private final String httpName;
+
+	private IntegrityAlgorithm(final String javaName, final String httpName) {
+		this.javaName = javaName;
+		this.httpName = httpName;
+	}
+
+	/**
+	 * Gets the name of the algorithm in <code>Digest</code> headers (RFC 3230).
+	 */
+	public String getHttpName() {
+		return httpName;
+	}
+
+	/** Creates a digest computing this algorithm. */
+	public MessageDigest newDigest() {
+		if (this == CRC32C) return new Crc32cDigest();
+		try {
+			return MessageDigest.getInstance(javaName);
+		}
+		catch (final NoSuchAlgorithmException exc) {
+			// NB: every Java platform has to support MD5 and SHA-256
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	/**
+	 * Finds the digest of the resource in the given response headers. Supported
+	 * are <code>Digest</code>, <code>Repr-Digest</code>,
+	 * <code>Content-MD5</code>, <code>x-goog-hash</code> and
+	 * <code>X-Checksum-*</code> headers.
+	 *
+	 * @return the digest, or null if the headers do not declare one
+	 */
+	public byte[] find(final Headers headers) {
+		final List<String> entries = new ArrayList<>();
+		for (final String name : new String[] { "Repr-Digest", "Digest",
+			"x-goog-hash" })
+		{
+			for (final String value : headers.values(name)) {
+				for (final String entry : value.split(",")) {
+					entries.add(entry.trim());
+				}
+			}
+		}
+		for (final String entry : entries) {
+			final int eq = entry.indexOf('=');
+			if (eq > 0 && entry.substring(0, eq).trim().equalsIgnoreCase(httpName)) {
+				return decode(entry.substring(eq + 1));
+			}
+		}
+
+		if (this == MD5 && headers.get("Content-MD5") != null) {
+			return decode(headers.get("Content-MD5"));
+		}
+		final String checksum = headers.get("X-Checksum-" + httpName.replace("-",
+			""));
+		return checksum == null ? null : decode(checksum);
+	}
+
+	/**
+	 * Decodes a digest given as hexadecimal or Base64 string, like the first
+	 * token of a <code>sha256sum</code> file.
+	 *
+	 * @return the digest, or null if it can not be decoded
+	 */
+	public byte[] decode(final String value) {
+		String v = value.trim();
+		final int space = v.indexOf(' ');
+		if (space > 0) v = v.substring(0, space);
+		// NB: structured header byte sequences are enclosed in colons
+		if (v.length() > 1 && v.startsWith(":") && v.endsWith(":")) {
+			v = v.substring(1, v.length() - 1);
+		}
+		final int length = newDigest().getDigestLength();
+		if (v.length() == 2 * length && v.matches("[0-9a-fA-F]+")) {
+			final byte[] digest = new byte[length];
+			for (int i = 0; i < length; i++) {
+				digest[i] = (byte) Integer.parseInt(v.substring(2 * i, 2 * i + 2), 16);
+			}
+			return digest;
+		}
+		try {
+			final byte[] digest = Base64.getDecoder().decode(v);
+			return digest.length == length ? digest : null;
+		}
+		catch (final IllegalArgumentException exc) {
+			return null;
+		}
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * CRC32C as {@link MessageDigest}, producing the four bytes of the checksum
+	 * in big-endian order. Uses the intrinsic {@code java.util.zip.CRC32C} of
+	 * Java 9 and newer when available.
+	 */
+	private static class Crc32cDigest extends MessageDigest {
+
+		private final Checksum checksum = newChecksum();
+
+		private Crc32cDigest() {
+			super("CRC32C");
+		}
+
+		@Override
+		protected int engineGetDigestLength() {
+			return 4;
+		}
+
+		@Override
+		protected void engineUpdate(final byte input) {
+			checksum.update(input);
+		}
+
+		@Override
+		protected void engineUpdate(final byte[] input, final int offset,
+			final int len)
+		{
+			checksum.update(input, offset, len);
+		}
+
+		@Override
+		protected byte[] engineDigest() {
+			final long value = checksum.getValue();
+			checksum.reset();
+			return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+				(byte) (value >>> 8), (byte) value };
+		}
+
+		@Override
+		protected void engineReset() {
+			checksum.reset();
+		}
+
+		private static Checksum newChecksum() {
+			try {
+				return (Checksum) Class.forName("java.util.zip.CRC32C")
+					.getConstructor().newInstance();
+			}
+			catch (final ReflectiveOperationException exc) {
+				return new PortableCrc32c();
+			}
+		}
+	}
+
+	/** Table driven CRC32C (Castagnoli) for Java 8. */
+	private static class PortableCrc32c implements Checksum {
+
+		private static final int[] TABLE = new int[256];
+
+		static {
+			for (int n = 0; n < 256; n++) {
+				int c = n;
+				for (int k = 0; k < 8; k++) {
+					c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+				}
+				TABLE[n] = c;
+			}
+		}
+
+		private int crc = 0xFFFFFFFF;
+
+		@Override
+		public void update(final int b) {
+			crc = TABLE[(crc ^ b) & 0xFF] ^ (crc >>> 8);
+		}
+
+		@Override
+		public void update(final byte[] b, final int off, final int len) {
+			int c = crc;
+			for (int i = off; i < off + len; i++) {
+				c = TABLE[(c ^ b[i]) & 0xFF] ^ (c >>> 8);
+			}
+			crc = c;
+		}
+
+		@Override
+		public long getValue() {
+			return ~crc & 0xFFFFFFFFL;
+		}
+
+		@Override
+		public void reset() {
+			crc = 0xFFFFFFFF;
+		}
+	}
+}
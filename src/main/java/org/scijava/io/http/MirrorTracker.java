@@ -0,0 +1,141 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Keeps track of the latency of mirror servers.
+ *
+ * @author agent
+ */
+class MirrorTracker {
+
+	/** Number of latency samples remembered per server. */
+	private static final int WINDOW = 128;
+
+	/** Number of samples needed before percentiles are trusted. */
+	private static final int MIN_SAMPLES = 8;
+
+	private final ConcurrentMap<String, Latencies> latencies =
+		new ConcurrentHashMap<>();
+
+	/** Records how long the server of the given url took to respond. */
+	void record(final HttpUrl url, final long millis) {
+		latencies.computeIfAbsent(origin(url), o -> new Latencies()).add(millis,
+			false);
+	}
+
+	/**
+	 * Records that the server of the given url had not responded after the given
+	 * time, when its call was cancelled. Unlike {@link #record}, this is only a
+	 * lower bound, which is assumed to be slower than all responses.
+	 */
+	void recordCancelled(final HttpUrl url, final long millis) {
+		latencies.computeIfAbsent(origin(url), o -> new Latencies()).add(millis,
+			true);
+	}
+
+	/**
+	 * Gets the given percentile of the latency of the server of the given url.
+	 *
+	 * @return the latency in milliseconds, or -1 if there are too few samples
+	 */
+	long percentile(final HttpUrl url, final double percentile) {
+		return percentile(url, percentile, MIN_SAMPLES);
+	}
+
+	/**
+	 * Ranks the given mirrors by their median latency. Servers without enough
+	 * samples come first, so that they get measured; ties keep the given order.
+	 */
+	List<HttpUrl> rank(final List<HttpUrl> urls) {
+		final List<HttpUrl> ranked = new ArrayList<>(urls);
+		Collections.sort(ranked, Comparator.comparingLong(url -> Math.max(0,
+			percentile(url, 0.5, 1))));
+		return ranked;
+	}
+
+	private long percentile(final HttpUrl url, final double percentile,
+		final int minSamples)
+	{
+		final Latencies l = latencies.get(origin(url));
+		return l == null ? -1 : l.percentile(percentile, minSamples);
+	}
+
+	private static String origin(final HttpUrl url) {
+		return url.scheme() + "://" + url.host() + ":" + url.port();
+	}
+
+	// -- Helper classes --
+
+	/** Ring buffer of the latest latency samples of one server. */
+	private static class Latencies {
+
+		private final long[] samples = new long[WINDOW];
+		private final boolean[] cancelled = new boolean[WINDOW];
+		private int count;
+
+		synchronized void add(final long millis, final boolean lowerBound) {
+			cancelled[count % WINDOW] = lowerBound;
+			samples[count++ % WINDOW] = millis;
+		}
+
+		synchronized long percentile(final double percentile,
+			final int minSamples)
+		{
+			final int n = Math.min(count, WINDOW);
+			if (n < minSamples) return -1;
+			// NB: cancelled calls lost a race, so they rank after all responses
+			final long[] sorted = new long[n];
+			int responses = 0;
+			int bounds = n;
+			for (int i = 0; i < n; i++) {
+				if (cancelled[i]) sorted[--bounds] = samples[i];
+				else sorted[responses++] = samples[i];
+			}
+			Arrays.sort(sorted, 0, responses);
+			Arrays.sort(sorted, responses, n);
+			for (int i = Math.max(1, responses); i < n; i++) {
+				sorted[i] = Math.max(sorted[i], sorted[i - 1]);
+			}
+			return sorted[(int) Math.min(n - 1, Math.floor(percentile * n))];
+		}
+	}
+}
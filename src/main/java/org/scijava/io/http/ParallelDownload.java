@@ -0,0 +1,488 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.scijava.io.location.FileLocation;
+import org.scijava.task.Task;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads an {@link HTTPLocation} into a local file, with several range
+ * requests at once.
+ * <p>
+ * The file is allocated up front and every range is written straight to its
+ * position. Ranges are recorded in a journal next to the file once they are
+ * forced to disk, so that an interrupted download continues where it stopped,
+ * as long as the mirror it probed still has the same entity tag.
+ * Servers without range support, or resources of unknown length, are copied
+ * with a single request.
+ * </p>
+ *
+ * @author agent
+ */
+class ParallelDownload {
+
+	/** Identifies journal files, and their version. */
+	private static final int JOURNAL_MAGIC = 0x534a4432;
+
+	/** How often a failed range is requested again. */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** Size of the buffers copying responses to the file. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final HTTPClientService clientService;
+	private final HTTPLocation source;
+	private final ConsistentMirrors mirrors;
+	private final File destination;
+	private final File journal;
+	private final int connections;
+	private final int chunkSize;
+
+	private final AtomicLong transferred = new AtomicLong();
+	private long length;
+	private String etag;
+
+	/** Url of the mirror which answered the probe, without credentials. */
+	private String probed;
+
+	/** Url of the mirror whose strong entity tag is checked by If-Range. */
+	private HttpUrl validatorUrl;
+
+	private final OkHttpClient client;
+
+	ParallelDownload(final HTTPClientService clientService,
+		final HTTPLocation source, final FileLocation destination,
+		final int connections, final int chunkSize)
+	{
+		if (connections < 1 || chunkSize < 1) {
+			throw new IllegalArgumentException("Invalid connections or chunk size: " +
+				connections + ", " + chunkSize);
+		}
+		this.clientService = clientService;
+		this.source = source;
+		this.mirrors = new ConsistentMirrors(source);
+		this.destination = destination.getFile();
+		this.journal = journalFile(this.destination);
+		this.connections = connections;
+		this.chunkSize = chunkSize;
+		this.client = ifRangeClient();
+	}
+
+	/** Gets the journal file of a download into the given file. */
+	static File journalFile(final File destination) {
+		return new File(destination.getPath() + ".journal");
+	}
+
+	/**
+	 * Runs the download.
+	 *
+	 * @param task reports the progress, and can cancel the download; may be
+	 *          null
+	 * @return the number of bytes of the file
+	 */
+	long run(final Task task) throws IOException {
+		if (!probe()) return copy(task);
+
+		final int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+		final BitSet done = readJournal(chunks);
+		final List<Integer> pending = new ArrayList<>();
+		for (int c = done.nextClearBit(0); c < chunks; c = done.nextClearBit(c +
+			1))
+		{
+			pending.add(c);
+		}
+		long completed = 0;
+		for (int c = done.nextSetBit(0); c >= 0; c = done.nextSetBit(c + 1)) {
+			completed += chunkLength(c);
+		}
+		if (task != null) {
+			task.setProgressMaximum(length);
+			task.setProgressValue(completed);
+		}
+
+		final ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+			connections, Math.max(1, pending.size())), r -> {
+				final Thread t = new Thread(r, "http-download-" + source.getName());
+				t.setDaemon(true);
+				return t;
+			});
+		try (final RandomAccessFile file = new RandomAccessFile(destination, "rw");
+				final DataOutputStream log = new DataOutputStream(
+					new FileOutputStream(journal, true)))
+		{
+			file.setLength(length);
+			final FileChannel channel = file.getChannel();
+			final AtomicInteger next = new AtomicInteger();
+			final long start = System.nanoTime();
+			final long alreadyDone = completed;
+
+			final List<Future<Void>> workers = new ArrayList<>();
+			for (int w = 0; w < connections; w++) {
+				workers.add(pool.submit(() -> {
+					int i;
+					while ((i = next.getAndIncrement()) < pending.size()) {
+						if (task != null && task.isCanceled()) {
+							throw new InterruptedIOException("Download canceled");
+						}
+						final int chunk = pending.get(i);
+						fetchChunk(chunk, channel, task, start, alreadyDone);
+						// NB: a chunk is only journaled once it is on disk, or a crash
+						// could leave it unwritten but marked as done
+						channel.force(false);
+						synchronized (log) {
+							log.writeInt(chunk);
+							log.flush();
+						}
+					}
+					return null;
+				}));
+			}
+			try {
+				for (final Future<Void> worker : workers) {
+					await(worker);
+				}
+			}
+			catch (final IOException exc) {
+				// NB: stop the other workers before the file is closed
+				pool.shutdownNow();
+				throw exc;
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		journal.delete();
+		return length;
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Finds out the length and entity tag of the resource. The mirror probed by
+	 * an earlier attempt is asked first, since only its tag can tell whether the
+	 * chunks in the journal are still valid.
+	 *
+	 * @return whether the resource can be downloaded in ranges
+	 */
+	private boolean probe() throws IOException {
+		final Request request = newRequest().header("Range", "bytes=0-0").build();
+		final String journaled = journaledMirror();
+		for (final HttpUrl url : source.getHttpUrls()) {
+			if (!withoutCredentials(url).equals(journaled)) continue;
+			try (final Response response = clientService.execute(client, request,
+				Collections.singletonList(url), r -> true))
+			{
+				if (response.code() == 206) return probed(response);
+			}
+			catch (final IOException exc) {
+				// NB: any mirror will do to start over
+			}
+			break;
+		}
+		try (final Response response = execute(request, -1)) {
+			return response.code() == 206 && probed(response);
+		}
+	}
+
+	/**
+	 * Takes the length and entity tag from the answer to the probe.
+	 *
+	 * @return whether the resource can be downloaded in ranges
+	 */
+	private boolean probed(final Response response) {
+		length = HTTPHandle.parseContentRangeLength(response.header(
+			"Content-Range"));
+		etag = response.header("ETag");
+		probed = withoutCredentials(response.request().url());
+		// NB: weak tags are not allowed in If-Range, see RFC 7233
+		if (etag != null && !etag.startsWith("W/")) {
+			validatorUrl = response.request().url();
+		}
+		return length > 0;
+	}
+
+	/** Gets the mirror probed by an earlier attempt, or null if unknown. */
+	private String journaledMirror() {
+		if (!journal.exists()) return null;
+		try (final DataInputStream in = new DataInputStream(new FileInputStream(
+			journal)))
+		{
+			if (in.readInt() != JOURNAL_MAGIC) return null;
+			in.readLong();
+			in.readInt();
+			return in.readUTF();
+		}
+		catch (final IOException exc) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the chunks finished by an earlier attempt, or starts a new journal
+	 * if there is none for this resource.
+	 */
+	private BitSet readJournal(final int chunks) throws IOException {
+		final BitSet done = new BitSet(chunks);
+		if (journal.exists() && destination.length() == length) {
+			try (final DataInputStream in = new DataInputStream(
+				new FileInputStream(journal)))
+			{
+				// NB: the tag is only meaningful for the mirror it came from
+				if (in.readInt() == JOURNAL_MAGIC && in.readLong() == length && in
+					.readInt() == chunkSize && in.readUTF().equals(probed) && in
+						.readUTF().equals(etag == null ? "" : etag))
+				{
+					while (true) {
+						final int chunk = in.readInt();
+						if (chunk >= 0 && chunk < chunks) done.set(chunk);
+					}
+				}
+			}
+			catch (final EOFException exc) {
+				// NB: end of journal, possibly cut off by the interruption
+			}
+			if (!done.isEmpty()) return done;
+		}
+		try (final DataOutputStream out = new DataOutputStream(
+			new FileOutputStream(journal)))
+		{
+			out.writeInt(JOURNAL_MAGIC);
+			out.writeLong(length);
+			out.writeInt(chunkSize);
+			out.writeUTF(probed);
+			out.writeUTF(etag == null ? "" : etag);
+		}
+		return done;
+	}
+
+	/** Downloads one chunk, retrying after failures. */
+	private void fetchChunk(final int chunk, final FileChannel channel,
+		final Task task, final long start, final long alreadyDone)
+		throws IOException
+	{
+		final long from = (long) chunk * chunkSize;
+		final long to = from + chunkLength(chunk) - 1;
+		final Request request = newRequest().header("Range", "bytes=" + from +
+			"-" + to).build();
+
+		final byte[] bytes = clientService.getBufferPool().acquire(BUFFER_SIZE);
+		try {
+			for (int attempt = 1;; attempt++) {
+				long written = 0;
+				try (final Response response = execute(request, length)) {
+					if (response.code() == 200) {
+						throw new ResourceChangedException(source);
+					}
+					if (response.code() != 206) {
+						throw new IOException("HTTP connection failure, errorcode: " +
+							response.code());
+					}
+					final InputStream in = response.body().byteStream();
+					final ByteBuffer buf = ByteBuffer.wrap(bytes);
+					int r;
+					while (written <= to - from && (r = in.read(bytes, 0, (int) Math
+						.min(bytes.length, to - from + 1 - written))) != -1)
+					{
+						buf.clear().limit(r);
+						while (buf.hasRemaining()) {
+							written += channel.write(buf, from + written);
+						}
+						progress(r, task, start, alreadyDone);
+					}
+					if (written != to - from + 1) {
+						throw new EOFException("Range " + from + "-" + to +
+							" ended early");
+					}
+					return;
+				}
+				catch (final ResourceChangedException exc) {
+					throw exc;
+				}
+				catch (final IOException exc) {
+					// NB: partially written ranges are fetched again from the start
+					progress(-written, task, start, alreadyDone);
+					if (attempt >= MAX_ATTEMPTS) throw exc;
+				}
+			}
+		}
+		finally {
+			clientService.getBufferPool().release(bytes);
+		}
+	}
+
+	/** Copies a resource that can not be fetched in ranges. */
+	private long copy(final Task task) throws IOException {
+		final byte[] bytes = clientService.getBufferPool().acquire(BUFFER_SIZE);
+		try (final Response response = execute(newRequest().build(), -1);
+				final FileOutputStream out = new FileOutputStream(destination))
+		{
+			if (!response.isSuccessful()) {
+				throw new IOException("HTTP connection failure, errorcode: " +
+					response.code());
+			}
+			length = response.body().contentLength();
+			if (task != null && length >= 0) task.setProgressMaximum(length);
+			final InputStream in = response.body().byteStream();
+			final long start = System.nanoTime();
+			int r;
+			while ((r = in.read(bytes)) != -1) {
+				if (task != null && task.isCanceled()) {
+					throw new InterruptedIOException("Download canceled");
+				}
+				out.write(bytes, 0, r);
+				progress(r, task, start, 0);
+			}
+		}
+		finally {
+			clientService.getBufferPool().release(bytes);
+		}
+		journal.delete();
+		return transferred.get();
+	}
+
+	private void progress(final long bytes, final Task task, final long start,
+		final long alreadyDone)
+	{
+		final long total = transferred.addAndGet(bytes);
+		if (task == null) return;
+		task.setProgressValue(alreadyDone + total);
+		final double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+		task.setStatusMessage(String.format("Downloading %s: %.1f MB/s", source
+			.getName(), total / seconds / 1e6));
+	}
+
+	private long chunkLength(final int chunk) {
+		return Math.min(chunkSize, length - (long) chunk * chunkSize);
+	}
+
+	private Request.Builder newRequest() {
+		return source.newRequest(HTTPPriority.BACKGROUND);
+	}
+
+	/**
+	 * Executes the request on any mirror whose resource has the given length.
+	 * A mirror answering a range request with all of the resource is not used
+	 * again, unless it is the one validating the range with If-Range, whose
+	 * resource then changed.
+	 */
+	private Response execute(final Request request, final long expectedLength)
+		throws IOException
+	{
+		final Predicate<Response> consistent = response -> {
+			if (expectedLength < 0) return true;
+			if (response.code() != 206) {
+				return response.request().url().equals(validatorUrl);
+			}
+			return HTTPHandle.parseContentRangeLength(response.header(
+				"Content-Range")) == expectedLength;
+		};
+		return clientService.execute(client, request, mirrors.urls(), mirrors
+			.check(consistent));
+	}
+
+	/**
+	 * @return the shared client, adding If-Range to the requests sent to the
+	 *         mirror whose entity tag is known; other mirrors may use other tags
+	 */
+	private OkHttpClient ifRangeClient() {
+		return clientService.client().newBuilder().addInterceptor(chain -> {
+			Request request = chain.request();
+			// NB: if the resource changed, the server answers with all of it
+			if (request.header("Range") != null && request.url().equals(
+				validatorUrl))
+			{
+				request = request.newBuilder().header("If-Range", etag).build();
+			}
+			return chain.proceed(request);
+		}).build();
+	}
+
+	/** Leaves the credentials out of urls written to the journal. */
+	private static String withoutCredentials(final HttpUrl url) {
+		return url.newBuilder().username("").password("").build().toString();
+	}
+
+	private static void await(final Future<Void> worker) throws IOException {
+		try {
+			worker.get();
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted during download");
+		}
+		catch (final ExecutionException exc) {
+			final Throwable cause = exc.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	// -- Helper classes --
+
+	/** Signals that the resource changed while it was being downloaded. */
+	private static class ResourceChangedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private ResourceChangedException(final HTTPLocation source) {
+			super("Resource changed during download: " + source.getURI());
+		}
+	}
+}
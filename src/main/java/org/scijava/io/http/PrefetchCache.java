@@ -0,0 +1,294 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Byte ranges of a resource that are fetched ahead of time into buffers
+ * borrowed from the {@link HTTPClientService#getBufferPool()}.
+ * <p>
+ * Only a few ranges of a handle are fetched at once, the others wait in the
+ * order they were added. The bytes of all caches are
+ * {@link BufferPool#reserve(long) reserved} in the pool, so together they stay
+ * within its limit. A range is given back once it was read to its end.
+ * </p>
+ *
+ * @author agent
+ */
+class PrefetchCache {
+
+	/** Maximum number of bytes prefetched per handle. */
+	static final long MAX_BYTES = 64L * 1024 * 1024;
+
+	/** Maximum number of ranges per handle that are fetched at once. */
+	static final int MAX_RUNNING = 8;
+
+	private final NavigableMap<Long, Range> ranges =
+		new ConcurrentSkipListMap<>();
+
+	/** Ranges that were not requested yet. */
+	private final Queue<Range> waiting = new ArrayDeque<>();
+
+	private final HTTPClientService clientService;
+	private final BufferPool pool;
+
+	private long bytes;
+	private int running;
+
+	PrefetchCache(final HTTPClientService clientService) {
+		this.clientService = clientService;
+		this.pool = clientService.getBufferPool();
+	}
+
+	/**
+	 * Adds a range to fetch.
+	 *
+	 * @param call the range request
+	 * @return false if the range does not fit into the cache, or into the room
+	 *         left in the pool
+	 */
+	boolean add(final long start, final int length, final Call call) {
+		if (bytes + length > MAX_BYTES || !pool.reserve(length)) return false;
+		bytes += length;
+		final Range range = new Range(start, length, call);
+		ranges.put(start, range);
+		synchronized (this) {
+			waiting.add(range);
+		}
+		startWaiting();
+		return true;
+	}
+
+	/** Checks whether a range starting at the given position is cached. */
+	boolean covers(final long pos) {
+		return find(pos) != null;
+	}
+
+	/**
+	 * Copies cached bytes at the given position, waiting for them to arrive if
+	 * necessary.
+	 *
+	 * @return the number of bytes copied, or -1 if the position is not cached
+	 */
+	int read(final long pos, final byte[] b, final int off, final int len)
+		throws IOException
+	{
+		final Range range = find(pos);
+		if (range == null) return -1;
+		synchronized (this) {
+			// NB: the stream is quicker than waiting for a new request
+			if (!range.started) {
+				waiting.remove(range);
+				remove(range);
+				return -1;
+			}
+		}
+		try {
+			range.data.get();
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException(exc);
+		}
+		catch (final ExecutionException exc) {
+			// NB: the caller falls back to the stream
+			remove(range);
+			return -1;
+		}
+		final int n = (int) Math.min(len, range.start + range.size - pos);
+		if (n <= 0 || range.buf == null) return -1;
+		System.arraycopy(range.buf, (int) (pos - range.start), b, off, n);
+		if (pos + n == range.start + range.size) remove(range);
+		return n;
+	}
+
+	/** Cancels all pending requests, and gives back the buffers. */
+	void cancel() {
+		synchronized (this) {
+			waiting.clear();
+		}
+		for (final Range range : ranges.values()) {
+			range.call.cancel();
+			range.drop(pool);
+		}
+		ranges.clear();
+	}
+
+	// -- Helper methods --
+
+	private Range find(final long pos) {
+		final Map.Entry<Long, Range> entry = ranges.floorEntry(pos);
+		if (entry == null) return null;
+		final Range range = entry.getValue();
+		return pos < range.start + range.length ? range : null;
+	}
+
+	private void remove(final Range range) {
+		ranges.remove(range.start, range);
+		range.drop(pool);
+	}
+
+	/** Requests waiting ranges while fewer than {@link #MAX_RUNNING} run. */
+	private void startWaiting() {
+		final List<Range> ready = new ArrayList<>();
+		synchronized (this) {
+			while (running < MAX_RUNNING && !waiting.isEmpty()) {
+				final Range range = waiting.poll();
+				range.started = true;
+				running++;
+				ready.add(range);
+			}
+		}
+		for (final Range range : ready) {
+			send(range);
+		}
+	}
+
+	private void finished() {
+		synchronized (this) {
+			running--;
+		}
+		startWaiting();
+	}
+
+	private void send(final Range range) {
+		// NB: the service queues the prefetch by its priority
+		clientService.enqueue(range.call, new Callback() {
+
+			@Override
+			public void onResponse(final Call c, final Response response) {
+				try (final Response r = response) {
+					final String contentRange = r.header("Content-Range");
+					if (r.code() != 206 || contentRange == null || !contentRange
+						.startsWith("bytes " + range.start + "-"))
+					{
+						throw new IOException("Unexpected response to prefetch: " + r
+							.code());
+					}
+					range.fill(r.body().source(), pool);
+				}
+				catch (final IOException exc) {
+					range.data.completeExceptionally(exc);
+				}
+				finally {
+					finished();
+				}
+			}
+
+			@Override
+			public void onFailure(final Call c, final IOException exc) {
+				range.data.completeExceptionally(exc);
+				finished();
+			}
+		});
+	}
+
+	// -- Helper classes --
+
+	private static class Range {
+
+		private final long start;
+		private final int length;
+		private final Call call;
+
+		/** Completes once the buffer holds the range. */
+		private final CompletableFuture<Void> data = new CompletableFuture<>();
+
+		/** Whether the range was requested, guarded by the cache. */
+		private boolean started;
+
+		private byte[] buf;
+		private int size;
+		private boolean dropped;
+
+		private Range(final long start, final int length, final Call call) {
+			this.start = start;
+			this.length = length;
+			this.call = call;
+		}
+
+		/** Reads the range into a borrowed buffer. */
+		private void fill(final BufferedSource source, final BufferPool pool)
+			throws IOException
+		{
+			final byte[] b = pool.acquire(length);
+			int n = 0;
+			try {
+				int r;
+				while (n < length && (r = source.read(b, n, length - n)) != -1) {
+					n += r;
+				}
+			}
+			catch (final IOException | RuntimeException exc) {
+				pool.release(b);
+				throw exc;
+			}
+			synchronized (this) {
+				// NB: the cache was canceled while the response arrived
+				if (dropped) {
+					pool.release(b);
+					throw new IOException("Prefetch canceled");
+				}
+				buf = b;
+				size = n;
+			}
+			data.complete(null);
+		}
+
+		/**
+		 * Gives back the buffer, once it is filled if it is not yet, and the
+		 * reserved bytes.
+		 */
+		private synchronized void drop(final BufferPool pool) {
+			if (dropped) return;
+			dropped = true;
+			pool.unreserve(length);
+			if (buf != null) {
+				pool.release(buf);
+				buf = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * {@link Interceptor} that limits the number of requests waiting for a
+ * response at the same time. Surplus requests are queued by their
+ * {@link HTTPPriority}, which is read from the request tag.
+ * <p>
+ * A request holds its slot only until the response headers arrived, so open
+ * response bodies do not block other requests.
+ * </p>
+ * <p>
+ * Asynchronous calls must be sent with {@link #enqueue}, which queues them by
+ * priority as well before they reach the dispatcher. Otherwise they would
+ * first wait in the first-come first-served queue of the dispatcher, behind
+ * any number of calls of lower priority.
+ * </p>
+ *
+ * @author agent
+ */
+class RequestScheduler implements Interceptor {
+
+	/** How often waiting requests check whether they were cancelled, in ms. */
+	private static final long CANCEL_POLL_INTERVAL = 50;
+
+	private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+
+	/** Asynchronous calls not handed to the dispatcher yet. */
+	private final PriorityQueue<Ticket> queued = new PriorityQueue<>();
+
+	private int maxRunning = 32;
+	private int running;
+	private int dispatched;
+	private long sequence;
+
+	synchronized int getMaxRunning() {
+		return maxRunning;
+	}
+
+	void setMaxRunning(final int maxRunning) {
+		if (maxRunning < 1) {
+			throw new IllegalArgumentException(
+				"At least one request must be allowed: " + maxRunning);
+		}
+		synchronized (this) {
+			this.maxRunning = maxRunning;
+			notifyAll();
+		}
+		dispatch();
+	}
+
+	/**
+	 * Sends a call asynchronously, once it is its turn by priority. At most as
+	 * many asynchronous calls as may run are handed to the dispatcher at a
+	 * time, each until its callback returned.
+	 */
+	void enqueue(final Call call, final Callback callback) {
+		synchronized (this) {
+			queued.add(new Ticket(priority(call.request()), sequence++, call,
+				callback));
+		}
+		dispatch();
+	}
+
+	/**
+	 * Cancels the queued asynchronous calls of the given priority. Their
+	 * callbacks are told so right away.
+	 */
+	void cancel(final HTTPPriority priority) {
+		final List<Ticket> cancelled = new ArrayList<>();
+		synchronized (this) {
+			for (final Iterator<Ticket> it = queued.iterator(); it.hasNext();) {
+				final Ticket ticket = it.next();
+				if (ticket.priority != priority) continue;
+				it.remove();
+				cancelled.add(ticket);
+			}
+		}
+		for (final Ticket ticket : cancelled) {
+			ticket.call.cancel();
+			// NB: a cancelled call fails at once, without a slot
+			ticket.call.enqueue(ticket.callback);
+		}
+	}
+
+	/** Gets the priority of the given request. */
+	static HTTPPriority priority(final Request request) {
+		final HTTPPriority priority = request.tag(HTTPPriority.class);
+		return priority == null ? HTTPPriority.NORMAL : priority;
+	}
+
+	// -- Interceptor methods --
+
+	@Override
+	public Response intercept(final Chain chain) throws IOException {
+		acquire(priority(chain.request()), chain.call());
+		try {
+			return chain.proceed(chain.request());
+		}
+		finally {
+			release();
+		}
+	}
+
+	// -- Helper methods --
+
+	private synchronized void acquire(final HTTPPriority priority,
+		final Call call) throws IOException
+	{
+		final Ticket ticket = new Ticket(priority, sequence++);
+		waiting.add(ticket);
+		try {
+			while (running >= maxRunning || waiting.peek() != ticket) {
+				if (call.isCanceled()) throw new IOException("Canceled");
+				wait(CANCEL_POLL_INTERVAL);
+			}
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queued");
+		}
+		finally {
+			waiting.remove(ticket);
+			// NB: the next ticket in line may be able to go now
+			notifyAll();
+		}
+		running++;
+	}
+
+	private synchronized void release() {
+		running--;
+		notifyAll();
+	}
+
+	/** Hands queued asynchronous calls to the dispatcher while there is room. */
+	private void dispatch() {
+		final List<Ticket> ready = new ArrayList<>();
+		synchronized (this) {
+			while (dispatched < maxRunning && !queued.isEmpty()) {
+				ready.add(queued.poll());
+				dispatched++;
+			}
+		}
+		// NB: the dispatcher may call back right away, so not while locked
+		for (final Ticket ticket : ready) {
+			ticket.call.enqueue(new Dispatched(ticket.callback));
+		}
+	}
+
+	private void finished() {
+		synchronized (this) {
+			dispatched--;
+		}
+		dispatch();
+	}
+
+	// -- Helper classes --
+
+	/** Callback freeing the slot of a dispatched call once it returned. */
+	private class Dispatched implements Callback {
+
+		private final Callback callback;
+
+		private Dispatched(final Callback callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public void onResponse(final Call call, final Response response)
+			throws IOException
+		{
+			try {
+				callback.onResponse(call, response);
+			}
+			finally {
+				finished();
+			}
+		}
+
+		@Override
+		public void onFailure(final Call call, final IOException exc) {
+			try {
+				callback.onFailure(call, exc);
+			}
+			finally {
+				finished();
+			}
+		}
+	}
+
+	/** Place of a request in the queue. */
+	private static class Ticket implements Comparable<Ticket> {
+
+		private final HTTPPriority priority;
+		private final long sequence;
+
+		/** The asynchronous call and its callback, if queued by enqueue. */
+		private final Call call;
+		private final Callback callback;
+
+		private Ticket(final HTTPPriority priority, final long sequence) {
+			this(priority, sequence, null, null);
+		}
+
+		private Ticket(final HTTPPriority priority, final long sequence,
+			final Call call, final Callback callback)
+		{
+			this.priority = priority;
+			this.sequence = sequence;
+			this.call = call;
+			this.callback = callback;
+		}
+
+		@Override
+		public int compareTo(final Ticket other) {
+			final int c = priority.compareTo(other.priority);
+			return c != 0 ? c : Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Input stream that digests the bytes passing through it and compares them
+ * with the expected digests.
+ * <p>
+ * The digest of the whole resource is checked at the end of the resource, if
+ * the stream started at its beginning. Block digests are
+ * checked whenever a block has been read from its start to its end. Skipped
+ * bytes are read and digested as well.
+ * </p>
+ *
+ * @author agent
+ */
+class VerifyingInputStream extends FilterInputStream {
+
+	private final MessageDigest full;
+	private final byte[] expected;
+	private final Consumer<byte[]> verified;
+
+	private final BlockChecksums blocks;
+	private final MessageDigest block;
+
+	/** Whether the current block was read from its start. */
+	private boolean blockComplete;
+
+	/** Position of the stream within the resource. */
+	private long pos;
+
+	/** Length of the resource, or -1 if unknown. */
+	private final long length;
+
+	private boolean finished;
+
+	private final byte[] single = new byte[1];
+
+	/** Reused by {@link #skip(long)}, which seeks call frequently. */
+	private byte[] skipBuffer;
+
+	/**
+	 * @param in the stream to verify
+	 * @param start position of the stream within the resource
+	 * @param length length of the resource, or -1 if it is only known at the
+	 *          end of the stream
+	 * @param full digest for the whole resource, or null
+	 * @param expected expected digest of the whole resource, or null
+	 * @param verified told the digest of the whole resource once it matched
+	 * @param blocks expected digests of the blocks, or null
+	 */
+	VerifyingInputStream(final InputStream in, final long start,
+		final long length, final MessageDigest full, final byte[] expected,
+		final Consumer<byte[]> verified, final BlockChecksums blocks)
+	{
+		super(in);
+		this.pos = start;
+		this.length = length;
+		this.full = start == 0 && expected != null ? full : null;
+		this.expected = expected;
+		this.verified = verified;
+		this.blocks = blocks;
+		this.block = blocks == null ? null : blocks.getAlgorithm().newDigest();
+		this.blockComplete = blocks != null && start % blocks.getBlockSize() == 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+		throws IOException
+	{
+		final int n = super.read(b, off, len);
+		if (n == -1) finish();
+		else if (n > 0) update(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		// NB: skipped bytes have to be digested, too
+		if (skipBuffer == null) skipBuffer = new byte[8192];
+		final byte[] buf = skipBuffer;
+		long skipped = 0;
+		while (skipped < n) {
+			final int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+			if (r == -1) break;
+			skipped += r;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	// -- Helper methods --
+
+	private void update(final byte[] b, final int off, final int len)
+		throws IOException
+	{
+		if (full != null) full.update(b, off, len);
+		if (blocks != null) updateBlocks(b, off, len);
+		else pos += len;
+		// NB: readers knowing the length never provoke the end of the stream
+		if (pos == length) finish();
+	}
+
+	private void updateBlocks(final byte[] b, int off, int len)
+		throws IOException
+	{
+		final int blockSize = blocks.getBlockSize();
+		while (len > 0) {
+			final long blockEnd = (pos / blockSize + 1) * blockSize;
+			final int chunk = (int) Math.min(len, blockEnd - pos);
+			if (blockComplete) block.update(b, off, chunk);
+			pos += chunk;
+			off += chunk;
+			len -= chunk;
+			if (pos == blockEnd) {
+				if (blockComplete) verifyBlock((int) (pos / blockSize - 1));
+				block.reset();
+				blockComplete = true;
+			}
+		}
+	}
+
+	private void finish() throws IOException {
+		if (finished) return;
+		finished = true;
+		if (blocks != null && blockComplete && pos % blocks.getBlockSize() != 0) {
+			verifyBlock((int) (pos / blocks.getBlockSize()));
+		}
+		if (full != null) {
+			check(full.digest(), expected, "resource");
+			verified.accept(expected);
+		}
+	}
+
+	private void verifyBlock(final int index) throws IOException {
+		if (index >= blocks.size()) {
+			throw new IOException("No checksum for block " + index);
+		}
+		check(block.digest(), blocks.get(index), "block " + index);
+	}
+
+	private static void check(final byte[] actual, final byte[] expected,
+		final String what) throws IOException
+	{
+		if (!Arrays.equals(actual, expected)) {
+			throw new IOException("Integrity check failed for " + what);
+		}
+	}
+}
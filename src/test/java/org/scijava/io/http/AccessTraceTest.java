@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AccessTrace}.
+ *
+ * @author agent
+ */
+public class AccessTraceTest {
+
+	@Test
+	public void testMerging() {
+		final AccessTrace trace = new AccessTrace();
+		// header, read piecewise
+		trace.record(0, 8);
+		trace.record(8, 4);
+		trace.record(100, 16);
+		// directory far away, then data behind the header
+		trace.record(5_000_000_000L, 200);
+		trace.record(4096, 1000);
+
+		final List<long[]> ranges = trace.ranges();
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] { 0, 116 }, ranges.get(0));
+		assertArrayEquals(new long[] { 5_000_000_000L, 5_000_000_200L }, ranges
+			.get(1));
+		assertArrayEquals(new long[] { 4096, 5096 }, ranges.get(2));
+	}
+
+	@Test
+	public void testCoalescing() {
+		final AccessTrace trace = new AccessTrace();
+		trace.record(1_000_000, 100);
+		trace.record(0, 100);
+		trace.record(10_000, 100);
+		trace.record(20_000, 100);
+		trace.record(5_000, 100);
+		trace.record(2_000_000, 300_000);
+
+		final List<long[]> ranges = trace.coalesced(10_000, 100_000);
+		assertEquals(5, ranges.size());
+		// NB: joined ranges come in the order of their first access
+		assertArrayEquals(new long[] { 1_000_000, 1_000_100 }, ranges.get(0));
+		assertArrayEquals(new long[] { 0, 20_100 }, ranges.get(1));
+		assertArrayEquals(new long[] { 2_000_000, 2_100_000 }, ranges.get(2));
+		assertArrayEquals(new long[] { 2_100_000, 2_200_000 }, ranges.get(3));
+		assertArrayEquals(new long[] { 2_200_000, 2_300_000 }, ranges.get(4));
+	}
+
+	@Test
+	public void testSerialization() throws IOException {
+		final AccessTrace trace = new AccessTrace();
+		trace.record(5_000_000_000L, 200);
+		trace.record(0, 8);
+		trace.record(123_456, 78);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		trace.write(new DataOutputStream(bytes));
+		// NB: three ranges need no more than a few bytes each
+		assertEquals(18, bytes.size());
+
+		final AccessTrace read = AccessTrace.read(new DataInputStream(
+			new ByteArrayInputStream(bytes.toByteArray())));
+		final List<long[]> expected = trace.ranges();
+		final List<long[]> actual = read.ranges();
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i));
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+
+import okhttp3.Credentials;
+
+/**
+ * Synthetic resource that requires basic authentication, if credentials are
+ * given, and records the <code>Authorization</code> headers it receives.
+ *
+ * @author agent
+ */
+public class AuthenticatingHandler extends SyntheticResourceHandler {
+
+	private final String credentials;
+	private final List<String> received = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param length the length of the served resource
+	 * @param username the required user name, or null to serve everyone
+	 * @param password the required password
+	 */
+	public AuthenticatingHandler(final long length, final String username,
+		final String password)
+	{
+		super(length, true, true);
+		this.credentials = username == null ? null : Credentials.basic(username,
+			password);
+	}
+
+	/**
+	 * Gets the <code>Authorization</code> headers of all requests so far, in
+	 * order; null for requests without one.
+	 */
+	public List<String> getReceivedCredentials() {
+		return received;
+	}
+
+	@Override
+	public void handle(final String target, final Request baseRequest,
+		final HttpServletRequest request, final HttpServletResponse response)
+		throws IOException
+	{
+		final String authorization = request.getHeader("Authorization");
+		received.add(authorization);
+		if (credentials != null && !credentials.equals(authorization)) {
+			baseRequest.setHandled(true);
+			response.setHeader("WWW-Authenticate", "Basic realm=\"test\"");
+			response.setStatus(401);
+			return;
+		}
+		super.handle(target, baseRequest, request, response);
+	}
+}
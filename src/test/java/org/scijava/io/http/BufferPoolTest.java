@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link BufferPool}.
+ *
+ * @author agent
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void testReuse() {
+		final BufferPool pool = new BufferPool();
+		final byte[] buf = pool.acquire(5000);
+		assertEquals(8192, buf.length);
+		pool.release(buf);
+		assertEquals(8192, pool.getPooledBytes());
+
+		// NB: any length of the same size class gets the same array
+		assertSame(buf, pool.acquire(8000));
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+		assertEquals(3, pool.getBorrowCount());
+		assertEquals(2, pool.getAllocationCount());
+	}
+
+	@Test
+	public void testLimit() {
+		final BufferPool pool = new BufferPool(3 * BufferPool.MIN_SIZE);
+		final byte[][] bufs = new byte[4][];
+		for (int i = 0; i < bufs.length; i++) {
+			bufs[i] = pool.acquire(BufferPool.MIN_SIZE);
+		}
+		for (final byte[] buf : bufs) {
+			pool.release(buf);
+		}
+		assertEquals(3 * BufferPool.MIN_SIZE, pool.getPooledBytes());
+		assertEquals(1, pool.getDiscardCount());
+
+		pool.setLimit(BufferPool.MIN_SIZE);
+		assertEquals(BufferPool.MIN_SIZE, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testReservations() {
+		final BufferPool pool = new BufferPool(1000);
+		assertTrue(pool.reserve(600));
+		assertFalse(pool.reserve(600));
+		assertTrue(pool.reserve(400));
+		assertEquals(1000, pool.getReservedBytes());
+		pool.unreserve(600);
+		assertTrue(pool.reserve(600));
+		assertEquals(1000, pool.getReservedBytes());
+	}
+
+	@Test
+	public void testUnpooled() {
+		final BufferPool pool = new BufferPool();
+		final byte[] large = pool.acquire(BufferPool.MAX_SIZE + 1);
+		assertEquals(BufferPool.MAX_SIZE + 1, large.length);
+		pool.release(large);
+		pool.release(new byte[1000]);
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(2, pool.getDiscardCount());
+	}
+}
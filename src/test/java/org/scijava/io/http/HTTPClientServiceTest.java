@@ -0,0 +1,377 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.io.handle.DataHandle;
+import org.scijava.io.handle.DataHandleService;
+import org.scijava.io.location.Location;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * Tests {@link HTTPClientService}.
+ *
+ * @author agent
+ */
+public class HTTPClientServiceTest {
+
+	private Context context;
+	private DataHandleService dataHandleService;
+	private HTTPClientService clientService;
+	private Server server;
+
+	@Before
+	public void setUp() {
+		context = new Context(DataHandleService.class, HTTPClientService.class);
+		dataHandleService = context.service(DataHandleService.class);
+		clientService = context.service(HTTPClientService.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null) server.stop();
+		context.dispose();
+	}
+
+	@Test
+	public void testBandwidthLimits() {
+		assertEquals(HTTPClientService.UNLIMITED, clientService
+			.getGlobalBandwidthLimit());
+		assertEquals(HTTPClientService.UNLIMITED, clientService
+			.getHostBandwidthLimit("localhost"));
+
+		clientService.setGlobalBandwidthLimit(1000);
+		clientService.setHostBandwidthLimit("localhost", 500);
+		assertEquals(1000, clientService.getGlobalBandwidthLimit());
+		assertEquals(500, clientService.getHostBandwidthLimit("localhost"));
+		assertEquals(HTTPClientService.UNLIMITED, clientService
+			.getHostBandwidthLimit("example.org"));
+
+		clientService.setHostBandwidthLimit("localhost",
+			HTTPClientService.UNLIMITED);
+		assertEquals(HTTPClientService.UNLIMITED, clientService
+			.getHostBandwidthLimit("localhost"));
+	}
+
+	@Test(timeout = 15_000)
+	public void testThrottledReading() throws Exception {
+		final int size = 200_000;
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		final Location loc = HTTPTestServers.location(server, "/throttled");
+
+		// NB: the first second worth of bytes is a free burst
+		clientService.setHostBandwidthLimit("localhost", size / 2);
+		final long start = System.nanoTime();
+		readAll(loc, size);
+		final long millis = (System.nanoTime() - start) / 1_000_000;
+		assertTrue("Read too fast: " + millis + " ms", millis >= 800);
+	}
+
+	@Test(timeout = 15_000)
+	public void testFairSharing() throws Exception {
+		final int size = 10_000_000;
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		final Location loc = HTTPTestServers.location(server, "/shared");
+		clientService.setHostBandwidthLimit("localhost", 200_000);
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong[] counts = { new AtomicLong(), new AtomicLong() };
+		final List<Thread> readers = new ArrayList<>();
+		for (final AtomicLong count : counts) {
+			final Thread reader = new Thread(() -> {
+				try (final DataHandle<Location> handle = dataHandleService.create(
+					loc))
+				{
+					final byte[] bytes = new byte[4096];
+					while (!stop.get()) {
+						final int n = handle.read(bytes);
+						if (n == -1) break;
+						count.addAndGet(n);
+					}
+				}
+				catch (final IOException exc) {
+					throw new RuntimeException(exc);
+				}
+			});
+			readers.add(reader);
+			reader.start();
+		}
+
+		// NB: skip the initial burst, which is not shared evenly
+		Thread.sleep(1_000);
+		final long[] before = { counts[0].get(), counts[1].get() };
+		Thread.sleep(2_000);
+		final long first = counts[0].get() - before[0];
+		final long second = counts[1].get() - before[1];
+		stop.set(true);
+		for (final Thread reader : readers) {
+			reader.join();
+		}
+		assertTrue("Unfair shares: " + first + " and " + second + " bytes", Math
+			.min(first, second) >= 0.5 * Math.max(first, second));
+		// NB: together they stay within the limit, plus a chunk in flight each
+		assertTrue("Limit exceeded: " + (first + second) + " bytes", first +
+			second <= 2 * 200_000 + 2 * 16 * 1024 + 50_000);
+	}
+
+	@Test(timeout = 15_000)
+	public void testRateLimitRetry() throws Exception {
+		final int size = 10_000;
+		final AtomicInteger rejections = new AtomicInteger(2);
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true)
+		{
+
+			@Override
+			public void handle(final String target, final Request baseRequest,
+				final HttpServletRequest request, final HttpServletResponse response)
+				throws IOException
+			{
+				if (rejections.getAndDecrement() > 0) {
+					baseRequest.setHandled(true);
+					response.setStatus(429);
+					response.setHeader("Retry-After", "0");
+					return;
+				}
+				super.handle(target, baseRequest, request, response);
+			}
+		});
+
+		readAll(HTTPTestServers.location(server, "/limited"), size);
+		assertTrue(rejections.get() < 0);
+	}
+
+	@Test(timeout = 15_000)
+	public void testRequestPriorities() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> served = Collections.synchronizedList(
+			new ArrayList<>());
+		server = HTTPTestServers.start(new BlockingHandler(release, served));
+		clientService.setMaxConcurrentRequests(1);
+
+		final Thread first = request("/first", HTTPPriority.NORMAL, null);
+		awaitServed(served, 1);
+		final Thread background = request("/background", HTTPPriority.BACKGROUND,
+			null);
+		Thread.sleep(200);
+		final Thread interactive = request("/interactive",
+			HTTPPriority.INTERACTIVE, null);
+		Thread.sleep(200);
+
+		release.countDown();
+		first.join();
+		background.join();
+		interactive.join();
+		assertEquals(Arrays.asList("/first", "/interactive", "/background"),
+			served);
+	}
+
+	@Test(timeout = 15_000)
+	public void testAsyncPriorities() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> served = Collections.synchronizedList(
+			new ArrayList<>());
+		server = HTTPTestServers.start(new BlockingHandler(release, served));
+		clientService.setMaxConcurrentRequests(1);
+
+		// NB: more background calls than the dispatcher runs at once
+		final int count = 300;
+		final CountDownLatch done = new CountDownLatch(count + 2);
+		enqueue("/first", HTTPPriority.NORMAL, done);
+		awaitServed(served, 1);
+		for (int i = 0; i < count; i++) {
+			enqueue("/background", HTTPPriority.BACKGROUND, done);
+		}
+		enqueue("/interactive", HTTPPriority.INTERACTIVE, done);
+		Thread.sleep(200);
+
+		release.countDown();
+		done.await();
+		assertEquals(count + 2, served.size());
+		assertEquals("/interactive", served.get(1));
+	}
+
+	@Test(timeout = 15_000)
+	public void testCancelPriority() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> served = Collections.synchronizedList(
+			new ArrayList<>());
+		server = HTTPTestServers.start(new BlockingHandler(release, served));
+		clientService.setMaxConcurrentRequests(1);
+
+		final Thread first = request("/first", HTTPPriority.NORMAL, null);
+		awaitServed(served, 1);
+		final AtomicReference<IOException> failure = new AtomicReference<>();
+		final Thread background = request("/background", HTTPPriority.BACKGROUND,
+			failure);
+		Thread.sleep(200);
+
+		clientService.cancel(HTTPPriority.BACKGROUND);
+		background.join();
+		release.countDown();
+		first.join();
+		assertTrue(failure.get() != null);
+		assertEquals(Arrays.asList("/first"), served);
+	}
+
+	/**
+	 * Sends a request to the given path in a new thread.
+	 *
+	 * @param failure receives the exception of the request, if any
+	 */
+	private Thread request(final String path, final HTTPPriority priority,
+		final AtomicReference<IOException> failure) throws Exception
+	{
+		final okhttp3.Request request = new okhttp3.Request.Builder().url(
+			HTTPTestServers.location(server, path).getHttpUrl()).tag(
+				HTTPPriority.class, priority).build();
+		final Thread thread = new Thread(() -> {
+			try (Response response = clientService.client().newCall(request)
+				.execute())
+			{
+				response.body().bytes();
+			}
+			catch (final IOException exc) {
+				if (failure != null) failure.set(exc);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	/** Sends a request to the given path asynchronously. */
+	private void enqueue(final String path, final HTTPPriority priority,
+		final CountDownLatch done) throws Exception
+	{
+		final okhttp3.Request request = new okhttp3.Request.Builder().url(
+			HTTPTestServers.location(server, path).getHttpUrl()).tag(
+				HTTPPriority.class, priority).build();
+		clientService.enqueue(clientService.client().newCall(request),
+			new Callback()
+		{
+
+			@Override
+			public void onResponse(final Call call, final Response response) {
+				response.close();
+				done.countDown();
+			}
+
+			@Override
+			public void onFailure(final Call call, final IOException exc) {
+				done.countDown();
+			}
+		});
+	}
+
+	private void awaitServed(final List<String> served, final int count)
+		throws InterruptedException
+	{
+		while (served.size() < count) {
+			Thread.sleep(10);
+		}
+	}
+
+	private void readAll(final Location loc, final int size)
+		throws IOException
+	{
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			final byte[] bytes = new byte[size];
+			handle.readFully(bytes);
+			for (int i = 0; i < size; i++) {
+				assertEquals(SyntheticResourceHandler.byteAt(i), bytes[i]);
+			}
+		}
+	}
+
+	/**
+	 * Handler recording the order of requests, which holds the first request
+	 * until released.
+	 */
+	private static class BlockingHandler extends AbstractHandler {
+
+		private final CountDownLatch release;
+		private final List<String> served;
+
+		private BlockingHandler(final CountDownLatch release,
+			final List<String> served)
+		{
+			this.release = release;
+			this.served = served;
+		}
+
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException
+		{
+			baseRequest.setHandled(true);
+			served.add(target);
+			if (served.size() == 1) {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				}
+				catch (final InterruptedException exc) {
+					throw new IOException(exc);
+				}
+			}
+			response.setStatus(200);
+		}
+	}
+}
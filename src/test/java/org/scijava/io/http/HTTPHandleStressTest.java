@@ -0,0 +1,420 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.io.handle.DataHandle;
+import org.scijava.io.handle.DataHandleService;
+import org.scijava.io.location.Location;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+
+/**
+ * Stress tests for {@link HTTPHandle}, running concurrent open/seek/read/close
+ * cycles against local stand-ins for the kinds of servers met in the wild.
+ * Each run checks that no connections or threads are leaked.
+ * <p>
+ * By default, a short run per server is enough to find leaks. The full stress
+ * test, with thousands of cycles and checks that neither memory is leaked nor
+ * the throughput degrades over time, depends on timing and garbage collection
+ * and so is only run when the system property {@value #STRESS_PROPERTY} is
+ * set to true, e.g. with <code>mvn test -Dscijava.io.http.stress=true</code>.
+ * </p>
+ *
+ * @author agent
+ */
+public class HTTPHandleStressTest {
+
+	/** Enables the full stress test. */
+	public static final String STRESS_PROPERTY = "scijava.io.http.stress";
+
+	private static final boolean STRESS = Boolean.getBoolean(STRESS_PROPERTY);
+
+	private static final int THREADS = 16;
+	private static final int ROUNDS = STRESS ? 4 : 1;
+	private static final int CYCLES_PER_ROUND = STRESS ? 500 : 100;
+	private static final int MAX_READ = 16 * 1024;
+
+	/** Connections open at once, beyond the one per worker thread. */
+	private static final int MAX_EXTRA_CONNECTIONS = 2 * THREADS;
+
+	/** Threads left behind by a run, e.g. the connection pool's cleanup. */
+	private static final int MAX_EXTRA_THREADS = 8;
+
+	private static final long MAX_HEAP_GROWTH = 32 * 1024 * 1024;
+
+	/** Lowest throughput of a round, relative to the first one. */
+	private static final double MIN_THROUGHPUT_RATIO = 0.25;
+
+	private Context context;
+	private DataHandleService dataHandleService;
+	private HTTPClientService clientService;
+	private Server server;
+
+	@Before
+	public void setUp() {
+		context = new Context(DataHandleService.class, HTTPClientService.class,
+			LogService.class);
+		dataHandleService = context.service(DataHandleService.class);
+		clientService = context.service(HTTPClientService.class);
+		// NB: failed reads from flaky servers are expected, do not log them
+		context.service(LogService.class).setLevel(LogLevel.NONE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		context.dispose();
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 120_000)
+	public void testRanges() throws Exception {
+		final int size = 1024 * 1024;
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		stress(HTTPTestServers.location(server, "/ranges"), size, false);
+	}
+
+	@Test(timeout = 120_000)
+	public void testNoRanges() throws Exception {
+		final int size = 100 * 1024;
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, false,
+			true));
+		stress(HTTPTestServers.location(server, "/noranges"), size, false);
+	}
+
+	@Test(timeout = 120_000)
+	public void testAuth() throws Exception {
+		final int size = 1024 * 1024;
+		server = HTTPTestServers.start(new AuthHandler("user", "secret",
+			new SyntheticResourceHandler(size, true, true)));
+		final HttpUrl url = HTTPTestServers.location(server, "/auth").getHttpUrl()
+			.newBuilder().username("user").password("secret").build();
+		stress(new HTTPLocation(url), size, false);
+	}
+
+	@Test(timeout = 120_000)
+	public void testSlowAndFlaky() throws Exception {
+		final int size = 1024 * 1024;
+		server = HTTPTestServers.start(new FlakyHandler(
+			new SyntheticResourceHandler(size, true, true)));
+		stress(HTTPTestServers.location(server, "/flaky"), size, true);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Runs the open/seek/read/close cycles, checking the bytes read, and then
+	 * the resources left behind.
+	 *
+	 * @param failuresExpected whether cycles may fail with an
+	 *          {@link IOException}, as long as some succeed
+	 */
+	private void stress(final Location loc, final int size,
+		final boolean failuresExpected) throws Exception
+	{
+		final long heapBefore = STRESS ? usedHeap() : 0;
+		final int threadsBefore = clientThreads();
+
+		final AtomicInteger failures = new AtomicInteger();
+		final AtomicInteger maxConnections = new AtomicInteger();
+		final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		final double[] throughput = new double[ROUNDS];
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				final long start = System.nanoTime();
+				final List<Future<Void>> cycles = new ArrayList<>();
+				for (int i = 0; i < CYCLES_PER_ROUND; i++) {
+					cycles.add(pool.submit(() -> {
+						try {
+							cycle(loc, size);
+						}
+						catch (final IOException exc) {
+							if (!failuresExpected) throw exc;
+							failures.incrementAndGet();
+						}
+						maxConnections.accumulateAndGet(HTTPTestServers.openConnections(
+							server), Math::max);
+						return null;
+					}));
+				}
+				for (final Future<Void> cycle : cycles) {
+					cycle.get();
+				}
+				throughput[round] = CYCLES_PER_ROUND * 1e9 / (System.nanoTime() -
+					start);
+			}
+		}
+		finally {
+			pool.shutdown();
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		}
+
+		final int cycles = ROUNDS * CYCLES_PER_ROUND;
+		assertTrue("Too many failed cycles: " + failures.get(), failures
+			.get() < cycles / 2);
+		assertTrue("Too many open connections: " + maxConnections.get(),
+			maxConnections.get() <= THREADS + MAX_EXTRA_CONNECTIONS);
+		for (int round = 1; round < ROUNDS; round++) {
+			assertTrue("Throughput of round " + round + " dropped to " +
+				throughput[round] + " cycles/s, from " + throughput[0],
+				throughput[round] >= MIN_THROUGHPUT_RATIO * throughput[0]);
+		}
+
+		// NB: connections of responses that were never closed are not idle
+		final ConnectionPool connectionPool = clientService.client()
+			.connectionPool();
+		connectionPool.evictAll();
+		assertEquals("Leaked connections", 0, connectionPool.connectionCount());
+		final long deadline = System.currentTimeMillis() + 5_000;
+		while (HTTPTestServers.openConnections(server) > 0 && System
+			.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals("Leaked sockets", 0, HTTPTestServers.openConnections(server));
+
+		final int threadGrowth = clientThreads() - threadsBefore;
+		assertTrue("Leaked threads: " + threadGrowth,
+			threadGrowth <= MAX_EXTRA_THREADS);
+		if (STRESS) {
+			final long heapGrowth = usedHeap() - heapBefore;
+			assertTrue("Heap grew by " + heapGrowth + " bytes",
+				heapGrowth <= MAX_HEAP_GROWTH);
+		}
+	}
+
+	/** Opens a handle, reads a random range of it and closes it again. */
+	private void cycle(final Location loc, final int size) throws IOException {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final int count = 1 + random.nextInt(MAX_READ);
+		final long pos = random.nextInt(size - count);
+		final byte[] bytes = new byte[count];
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			handle.seek(pos);
+			handle.readFully(bytes);
+		}
+		for (int i = 0; i < count; i++) {
+			if (bytes[i] != SyntheticResourceHandler.byteAt(pos + i)) {
+				throw new AssertionError("Wrong byte at position " + (pos + i));
+			}
+		}
+	}
+
+	/** Counts the live threads, except for those of the server. */
+	private int clientThreads() {
+		final String serverThreads = ((QueuedThreadPool) server.getThreadPool())
+			.getName();
+		int count = 0;
+		for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (!thread.getName().startsWith(serverThreads)) count++;
+		}
+		return count;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// -- Helper classes --
+
+	/** Requires basic authentication before handing over to the delegate. */
+	private static class AuthHandler extends AbstractHandler {
+
+		private final String credentials;
+		private final Handler delegate;
+
+		private AuthHandler(final String username, final String password,
+			final Handler delegate)
+		{
+			this.credentials = "Basic " + Base64.getEncoder().encodeToString(
+				(username + ":" + password).getBytes(StandardCharsets.UTF_8));
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException, javax.servlet.ServletException
+		{
+			if (!credentials.equals(request.getHeader("Authorization"))) {
+				baseRequest.setHandled(true);
+				response.setHeader("WWW-Authenticate", "Basic realm=\"stress\"");
+				response.setStatus(401);
+				return;
+			}
+			delegate.handle(target, baseRequest, request, response);
+		}
+
+		@Override
+		protected void doStart() throws Exception {
+			delegate.setServer(getServer());
+			delegate.start();
+			super.doStart();
+		}
+	}
+
+	/**
+	 * Delays every response a little, answers some requests with an error and
+	 * drops the connection in the middle of some bodies.
+	 */
+	private static class FlakyHandler extends AbstractHandler {
+
+		private final Handler delegate;
+
+		private FlakyHandler(final Handler delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException, javax.servlet.ServletException
+		{
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			try {
+				Thread.sleep(random.nextInt(3));
+			}
+			catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+			final int dice = random.nextInt(10);
+			if (dice == 0) {
+				baseRequest.setHandled(true);
+				response.setStatus(503);
+				return;
+			}
+			if (dice == 1) {
+				delegate.handle(target, baseRequest, request,
+					new TruncatingResponse(response, random.nextInt(MAX_READ)));
+				return;
+			}
+			delegate.handle(target, baseRequest, request, response);
+		}
+
+		@Override
+		protected void doStart() throws Exception {
+			delegate.setServer(getServer());
+			delegate.start();
+			super.doStart();
+		}
+	}
+
+	/** Response whose body breaks off after a given number of bytes. */
+	private static class TruncatingResponse extends HttpServletResponseWrapper {
+
+		private final ServletOutputStream out;
+
+		private TruncatingResponse(final HttpServletResponse response,
+			final int limit) throws IOException
+		{
+			super(response);
+			final ServletOutputStream delegate = response.getOutputStream();
+			out = new ServletOutputStream() {
+
+				private int written;
+
+				@Override
+				public void write(final int b) throws IOException {
+					if (written++ >= limit) throw new IOException("Connection dropped");
+					delegate.write(b);
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len)
+					throws IOException
+				{
+					if (written + len > limit) {
+						delegate.write(b, off, Math.max(0, limit - written));
+						delegate.flush();
+						throw new IOException("Connection dropped");
+					}
+					written += len;
+					delegate.write(b, off, len);
+				}
+
+				@Override
+				public boolean isReady() {
+					return delegate.isReady();
+				}
+
+				@Override
+				public void setWriteListener(final WriteListener listener) {
+					delegate.setWriteListener(listener);
+				}
+			};
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return out;
+		}
+	}
+}
@@ -31,21 +31,38 @@
 package org.scijava.io.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.security.ConstraintMapping;
 import org.eclipse.jetty.security.ConstraintSecurityHandler;
 import org.eclipse.jetty.security.HashLoginService;
 import org.eclipse.jetty.security.authentication.BasicAuthenticator;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.ContextHandler;
@@ -54,11 +71,18 @@ import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.security.Constraint;
 import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import org.scijava.Context;
 import org.scijava.io.handle.DataHandle;
+import org.scijava.io.handle.DataHandleService;
 import org.scijava.io.handle.DataHandleTest;
 import org.scijava.io.location.Location;
 
+import okhttp3.Call;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+
 /**
  * Tests {@link HTTPHandle}.
  *
@@ -67,13 +91,26 @@ import org.scijava.io.location.Location;
  */
 public class HTTPHandleTest extends DataHandleTest {
 
+	private Context context;
 	private Server server;
+	private Server mirror;
+
+	@Before
+	@Override
+	public void init() {
+		context = new Context(DataHandleService.class, HTTPClientService.class);
+		dataHandleService = context.service(DataHandleService.class);
+	}
 
 	@After
 	public void tearDown() throws Exception {
+		context.dispose();
 		if (server != null) {
 			server.stop();
 		}
+		if (mirror != null) {
+			mirror.stop();
+		}
 	}
 
 	@Override
@@ -142,6 +179,530 @@ public class HTTPHandleTest extends DataHandleTest {
 		checkEndiannessReading(handle);
 	}
 
+	@Test
+	public void testLargeLength() throws Exception {
+		final long size = 300L * 1024 * 1024 * 1024;
+		final Location loc = createSyntheticServer(new SyntheticResourceHandler(
+			size, true, true));
+
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			assertEquals(size, handle.length());
+			handle.seek(size - 16);
+			checkSyntheticBytes(handle, size - 16, 16);
+			assertEquals(size, handle.offset());
+		}
+	}
+
+	@Test
+	public void testUnknownLengthWithRanges() throws Exception {
+		final int size = 50_000;
+		final Location loc = createSyntheticServer(new SyntheticResourceHandler(
+			size, true, false));
+
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			assertEquals(-1, handle.length());
+			handle.seek(20_000);
+			checkSyntheticBytes(handle, 20_000, size - 20_000);
+			assertEquals(-1, handle.read());
+			assertEquals(size, handle.length());
+		}
+	}
+
+	@Test
+	public void testUnknownLengthChunked() throws Exception {
+		final int size = 50_000;
+		final Location loc = createSyntheticServer(new SyntheticResourceHandler(
+			size, false, false));
+
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			assertEquals(-1, handle.length());
+			checkSyntheticBytes(handle, 0, size);
+			assertEquals(-1, handle.read());
+			assertEquals(size, handle.length());
+		}
+	}
+
+	@Test(timeout = 15_000)
+	public void testMirrorHedging() throws Exception {
+		final int size = 10_000;
+		server = HTTPTestServers.start(new SlowHandler(size, 5_000,
+			new AtomicInteger()));
+		mirror = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		final HTTPLocation loc = new HTTPLocation(HTTPTestServers.location(server,
+			"/slow").getHttpUrl(), Arrays.asList(HTTPTestServers.location(mirror,
+				"/fast").getHttpUrl()));
+
+		final long start = System.nanoTime();
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			assertEquals(size, handle.length());
+			checkSyntheticBytes(handle, 0, size);
+		}
+		final long millis = (System.nanoTime() - start) / 1_000_000;
+		assertTrue("Slow mirror was not hedged: " + millis + " ms", millis < 4_000);
+	}
+
+	@Test(timeout = 15_000)
+	public void testCancelledHedge() throws Exception {
+		final int size = 100_000;
+		server = HTTPTestServers.start(new SlowHandler(size, 1_200,
+			new AtomicInteger()));
+		final AtomicInteger hedges = new AtomicInteger();
+		mirror = HTTPTestServers.start(new SlowHandler(size, 5_000, hedges));
+		final HTTPLocation loc = new HTTPLocation(HTTPTestServers.location(server,
+			"/slow").getHttpUrl(), Arrays.asList(HTTPTestServers.location(mirror,
+				"/slower").getHttpUrl()));
+
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			assertEquals(size, handle.length());
+			assertEquals(1, hedges.get());
+			// NB: the cancelled hedge does not make the mirror look faster, so the
+			// next request goes to the primary first again
+			final long start = System.nanoTime();
+			handle.seek(size / 2);
+			checkSyntheticBytes(handle, size / 2, 1_000);
+			final long millis = (System.nanoTime() - start) / 1_000_000;
+			assertTrue("Slower mirror was asked first: " + millis + " ms",
+				millis < 2_000);
+		}
+	}
+
+	@Test(timeout = 15_000)
+	public void testInconsistentMirror() throws Exception {
+		final int size = 100_000;
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		final AtomicInteger badRequests = new AtomicInteger();
+		mirror = HTTPTestServers.start(new SlowHandler(size + 1, 0, badRequests));
+		final HTTPLocation loc = new HTTPLocation(HTTPTestServers.location(server,
+			"/good").getHttpUrl(), Arrays.asList(HTTPTestServers.location(mirror,
+				"/bad").getHttpUrl()));
+
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			assertEquals(size, handle.length());
+			// NB: the unmeasured mirror gets tried, rejected and excluded
+			for (int i = 0; i < 5; i++) {
+				handle.seek(size - 20_000 * (i + 1));
+				checkSyntheticBytes(handle, handle.offset(), 1_000);
+			}
+		}
+		assertEquals(1, badRequests.get());
+	}
+
+	@Test(timeout = 15_000)
+	public void testMirrorCredentials() throws Exception {
+		final int size = 100_000;
+		final AuthenticatingHandler primary = new AuthenticatingHandler(size,
+			"alice", "s3cret");
+		final AuthenticatingHandler other = new AuthenticatingHandler(size, null,
+			null);
+		server = HTTPTestServers.start(primary);
+		mirror = HTTPTestServers.start(other);
+		final HttpUrl url = HTTPTestServers.location(server, "/primary")
+			.getHttpUrl().newBuilder().username("alice").password("s3cret").build();
+		final HTTPLocation loc = new HTTPLocation(url, Arrays.asList(
+			HTTPTestServers.location(mirror, "/mirror").getHttpUrl()));
+
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			// NB: the first request authenticates with the primary, later ones go
+			// to the unmeasured mirror first
+			for (int i = 0; i < 4; i++) {
+				handle.seek(size - 20_000 * (i + 1));
+				checkSyntheticBytes(handle, handle.offset(), 1_000);
+			}
+		}
+		assertTrue(primary.getReceivedCredentials().contains(Credentials.basic(
+			"alice", "s3cret")));
+		assertFalse(other.getReceivedCredentials().isEmpty());
+		for (final String credentials : other.getReceivedCredentials()) {
+			assertNull("Mirror received credentials", credentials);
+		}
+	}
+
+	@Test
+	public void testIntegrityCheck() throws Exception {
+		final int size = 50_000;
+		final MessageDigest digest = IntegrityAlgorithm.SHA_256.newDigest();
+		digest.update(syntheticBytes(size));
+		final String sha256 = Base64.getEncoder().encodeToString(digest
+			.digest());
+		server = HTTPTestServers.start(new DigestHandler(size, "sha-256=" +
+			sha256));
+		final Location loc = HTTPTestServers.location(server, "/verified");
+
+		try (final HTTPHandle handle = createHandle(loc))
+		{
+			handle.setIntegrityAlgorithm(IntegrityAlgorithm.SHA_256);
+			checkSyntheticBytes(handle, 0, size - 1);
+			assertFalse(handle.isVerified());
+			checkSyntheticBytes(handle, size - 1, 1);
+			assertTrue(handle.isVerified());
+			assertEquals(sha256, Base64.getEncoder().encodeToString(handle
+				.getVerifiedDigest()));
+		}
+		server.stop();
+
+		// the digest of other content must be rejected
+		digest.update(syntheticBytes(size - 1));
+		server = HTTPTestServers.start(new DigestHandler(size, "sha-256=" + Base64
+			.getEncoder().encodeToString(digest.digest())));
+		try (final HTTPHandle handle = createHandle(HTTPTestServers.location(
+			server, "/corrupt")))
+		{
+			handle.setIntegrityAlgorithm(IntegrityAlgorithm.SHA_256);
+			handle.readFully(new byte[size]);
+			fail("Integrity check did not fail");
+		}
+		catch (final IOException exc) {
+			assertEquals("Integrity check failed for resource", exc.getMessage());
+		}
+	}
+
+	@Test
+	public void testMissingDigest() throws Exception {
+		final int size = 50_000;
+		final Location loc = createSyntheticServer(new SyntheticResourceHandler(
+			size, true, true));
+
+		// NB: without a declared digest, the bytes are read but not verified
+		try (final HTTPHandle handle = createHandle(loc)) {
+			handle.setIntegrityAlgorithm(IntegrityAlgorithm.SHA_256);
+			checkSyntheticBytes(handle, 0, size);
+			assertEquals(-1, handle.read());
+			assertFalse(handle.isVerified());
+			assertNull(handle.getVerifiedDigest());
+		}
+	}
+
+	@Test
+	public void testBlockChecksums() throws Exception {
+		final int size = 50_000;
+		final int blockSize = 4096;
+		final BlockChecksums checksums = BlockChecksums.compute(
+			IntegrityAlgorithm.CRC32C, blockSize, new ByteArrayInputStream(
+				syntheticBytes(size)));
+		assertEquals(13, checksums.size());
+		final List<byte[]> digests = new ArrayList<>();
+		for (int i = 0; i < checksums.size(); i++) {
+			digests.add(checksums.get(i));
+		}
+		digests.set(5, digests.get(4));
+
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		try (final HTTPHandle handle = createHandle(HTTPTestServers.location(
+			server, "/blocks")))
+		{
+			handle.setBlockChecksums(new BlockChecksums(IntegrityAlgorithm.CRC32C,
+				blockSize, digests));
+
+			// crosses the end of block 7, which is fine
+			handle.seek(30_000);
+			checkSyntheticBytes(handle, 30_000, 3_000);
+
+			// crosses the end of block 5, which is corrupt
+			handle.seek(5 * blockSize + 100);
+			handle.readFully(new byte[blockSize]);
+			fail("Block check did not fail");
+		}
+		catch (final IOException exc) {
+			assertEquals("Integrity check failed for block 5", exc.getMessage());
+		}
+	}
+
+	private HTTPHandle createHandle(final Location loc) {
+		return (HTTPHandle) (DataHandle<?>) dataHandleService.create(loc);
+	}
+
+	@Test(timeout = 30_000)
+	public void testAccessTracePrefetch() throws Exception {
+		final int size = 2_000_000;
+		final long[] offsets = { 500_000, 900_000, 1_300_000, 1_700_000,
+			100_000 };
+		final AtomicInteger requests = new AtomicInteger();
+		server = HTTPTestServers.start(new SlowHandler(size, 150, requests));
+		final Location loc = HTTPTestServers.location(server, "/traced");
+		context.service(HTTPClientService.class).setAccessTraceDirectory(Files
+			.createTempDirectory("scijava-http-traces").toFile());
+
+		final long[] millis = new long[2];
+		for (int pass = 0; pass < 2; pass++) {
+			requests.set(0);
+			final long start = System.nanoTime();
+			try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+				checkSyntheticBytes(handle, 0, 100);
+				if (pass == 1) checkPrefetchPriority();
+				for (final long offset : offsets) {
+					handle.seek(offset);
+					checkSyntheticBytes(handle, offset, 2_000);
+				}
+			}
+			millis[pass] = (System.nanoTime() - start) / 1_000_000;
+			// the initial request, and one per range: reconnects, then prefetches
+			assertEquals(1 + offsets.length, requests.get());
+		}
+		assertTrue("Prefetching did not help: " + millis[0] + " ms, then " +
+			millis[1] + " ms", 2 * millis[1] < millis[0]);
+	}
+
+	@Test(timeout = 15_000)
+	public void testPrefetchLimits() throws Exception {
+		final int size = 8_000_000;
+		final int clusters = 20;
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		server = HTTPTestServers.start(new SlowHandler(size, 30, requests) {
+
+			@Override
+			public void handle(final String target, final Request baseRequest,
+				final HttpServletRequest request, final HttpServletResponse response)
+				throws IOException
+			{
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					super.handle(target, baseRequest, request, response);
+				}
+				finally {
+					running.decrementAndGet();
+				}
+			}
+		});
+		final Location loc = HTTPTestServers.location(server, "/scattered");
+		final HTTPClientService clientService = context.service(
+			HTTPClientService.class);
+		clientService.setAccessTraceDirectory(Files.createTempDirectory(
+			"scijava-http-traces").toFile());
+		final BufferPool pool = clientService.getBufferPool();
+
+		// NB: three reads close together per cluster, each its own request
+		final List<Long> offsets = new ArrayList<>();
+		for (int c = 0; c < clusters; c++) {
+			for (int r = 0; r < 3; r++) {
+				offsets.add(100_000L + c * 300_000L + r * 20_000L);
+			}
+		}
+		readTrace(loc, offsets);
+
+		// NB: the clusters are prefetched with one request each, a few at once
+		requests.set(0);
+		maxRunning.set(0);
+		readTrace(loc, offsets);
+		assertEquals(1 + clusters, requests.get());
+		assertTrue("Too many prefetches at once: " + maxRunning.get(), maxRunning
+			.get() <= PrefetchCache.MAX_RUNNING + 1);
+		assertEquals(0, pool.getReservedBytes());
+
+		// NB: all prefetches share the limit of the pool
+		pool.setLimit(2 * 41_000 + 1_000);
+		requests.set(0);
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			checkSyntheticBytes(handle, 0, 100);
+			Thread.sleep(1_000);
+			assertEquals(1 + 2, requests.get());
+			assertEquals(2 * 40_100, pool.getReservedBytes());
+		}
+		assertEquals(0, pool.getReservedBytes());
+	}
+
+	@Test(timeout = 15_000)
+	public void testPrefetchWithLateBlockChecksums() throws Exception {
+		final int size = 400_000;
+		final int blockSize = 64 * 1024;
+		final BlockChecksums checksums = BlockChecksums.compute(
+			IntegrityAlgorithm.CRC32C, blockSize, new ByteArrayInputStream(
+				syntheticBytes(size)));
+		final List<byte[]> digests = new ArrayList<>();
+		for (int i = 0; i < checksums.size(); i++) {
+			digests.add(checksums.get(i));
+		}
+		digests.set(3, digests.get(2));
+
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		final Location loc = HTTPTestServers.location(server, "/late");
+		context.service(HTTPClientService.class).setAccessTraceDirectory(Files
+			.createTempDirectory("scijava-http-traces").toFile());
+		try (final HTTPHandle handle = createHandle(loc)) {
+			checkSyntheticBytes(handle, 0, 100);
+			handle.seek(200_000);
+			checkSyntheticBytes(handle, 200_000, 70_000);
+		}
+
+		// NB: the traced range is prefetched before the checksums are known
+		try (final HTTPHandle handle = createHandle(loc)) {
+			checkSyntheticBytes(handle, 0, 100);
+			handle.setBlockChecksums(new BlockChecksums(IntegrityAlgorithm.CRC32C,
+				blockSize, digests));
+			handle.seek(200_000);
+			handle.readFully(new byte[70_000]);
+			fail("Prefetched bytes were not verified");
+		}
+		catch (final IOException exc) {
+			assertEquals("Integrity check failed for block 3", exc.getMessage());
+		}
+	}
+
+	@Test(timeout = 15_000)
+	public void testSteadyStateAllocation() throws Exception {
+		final int size = 8_000_000;
+		server = HTTPTestServers.start(new SyntheticResourceHandler(size, true,
+			true));
+		final BufferPool pool = context.service(HTTPClientService.class)
+			.getBufferPool();
+		final int cycles = 400;
+
+		try (final HTTPHandle handle = createHandle(HTTPTestServers.location(
+			server, "/steady")))
+		{
+			final byte[] bytes = new byte[4096];
+			// NB: forward seeks below the jump cutoff skip through the stream
+			for (int i = 0; i < cycles; i++) {
+				handle.seek(handle.offset() + 5_000);
+				handle.readFully(bytes);
+			}
+			final long borrowed = pool.getBorrowCount();
+			final long allocated = allocatedBytes();
+			for (int i = 0; i < cycles; i++) {
+				handle.seek(handle.offset() + 5_000);
+				handle.readFully(bytes);
+			}
+			assertEquals(borrowed, pool.getBorrowCount());
+			if (allocated >= 0) {
+				final long perCycle = (allocatedBytes() - allocated) / cycles;
+				assertTrue("Allocated " + perCycle + " bytes per seek and read",
+					perCycle < 256);
+			}
+		}
+		// NB: the handle's skip buffer goes back to the pool
+		assertTrue(pool.getPooledBytes() > 0);
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread so far, or -1 if the
+	 *         JVM does not tell
+	 */
+	private static long allocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		final com.sun.management.ThreadMXBean allocations =
+			(com.sun.management.ThreadMXBean) threads;
+		if (!allocations.isThreadAllocatedMemorySupported()) return -1;
+		return allocations.getThreadAllocatedBytes(Thread.currentThread()
+			.getId());
+	}
+
+	/** Checks that the prefetches in flight do not compete with reads. */
+	private void checkPrefetchPriority() {
+		final List<Call> calls = context.service(HTTPClientService.class).client()
+			.dispatcher().runningCalls();
+		assertFalse(calls.isEmpty());
+		for (final Call call : calls) {
+			assertEquals(HTTPPriority.BACKGROUND, call.request().tag(
+				HTTPPriority.class));
+		}
+	}
+
+	/**
+	 * Gets the first bytes served by a {@link SyntheticResourceHandler}.
+	 */
+	private static byte[] syntheticBytes(final int count) {
+		final byte[] bytes = new byte[count];
+		for (int i = 0; i < count; i++) {
+			bytes[i] = SyntheticResourceHandler.byteAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Reads from the handle and compares the bytes with the content served by a
+	 * {@link SyntheticResourceHandler}.
+	 */
+	private void checkSyntheticBytes(final DataHandle<?> handle,
+		final long start, final int count) throws IOException
+	{
+		final byte[] bytes = new byte[count];
+		handle.readFully(bytes);
+		for (int i = 0; i < count; i++) {
+			if (bytes[i] != SyntheticResourceHandler.byteAt(start + i)) {
+				fail("Wrong byte at position " + (start + i));
+			}
+		}
+		assertTrue(handle.offset() == start + count);
+	}
+
+	/**
+	 * Synthetic resource whose server takes a while to answer, and counts the
+	 * requests.
+	 */
+	/**
+	 * Reads the first bytes and then a few at each of the given offsets,
+	 * waiting for prefetches to arrive first.
+	 */
+	private void readTrace(final Location loc, final List<Long> offsets)
+		throws Exception
+	{
+		try (final DataHandle<Location> handle = dataHandleService.create(loc)) {
+			checkSyntheticBytes(handle, 0, 100);
+			Thread.sleep(1_000);
+			for (final long offset : offsets) {
+				handle.seek(offset);
+				checkSyntheticBytes(handle, offset, 100);
+			}
+		}
+	}
+
+	private static class SlowHandler extends SyntheticResourceHandler {
+
+		private final long delay;
+		private final AtomicInteger requests;
+
+		private SlowHandler(final long length, final long delay,
+			final AtomicInteger requests)
+		{
+			super(length, true, true);
+			this.delay = delay;
+			this.requests = requests;
+		}
+
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException
+		{
+			requests.incrementAndGet();
+			try {
+				Thread.sleep(delay);
+			}
+			catch (final InterruptedException exc) {
+				throw new IOException(exc);
+			}
+			super.handle(target, baseRequest, request, response);
+		}
+	}
+
+	/**
+	 * Synthetic resource whose server declares a digest.
+	 */
+	private static class DigestHandler extends SyntheticResourceHandler {
+
+		private final String digest;
+
+		private DigestHandler(final long length, final String digest) {
+			super(length, true, true);
+			this.digest = digest;
+		}
+
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException
+		{
+			response.setHeader("Digest", digest);
+			super.handle(target, baseRequest, request, response);
+		}
+	}
+
 	/**
 	 * Creates a server which needs to be accessed with HTTP basic auth
 	 *
@@ -226,6 +787,19 @@ public class HTTPHandleTest extends DataHandleTest {
 			"/testfile-range", username, password);
 	}
 
+	/**
+	 * Creates a server that answers every request with the given handler.
+	 *
+	 * @return the location of the resource on the server
+	 * @throws Exception
+	 */
+	private HTTPLocation createSyntheticServer(final Handler handler)
+		throws Exception
+	{
+		server = HTTPTestServers.start(handler);
+		return HTTPTestServers.location(server, "/synthetic");
+	}
+
 	/**
 	 * Creates a server that supports partial downloads.
 	 *
@@ -35,6 +35,8 @@ import static org.junit.Assert.assertEquals;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
 
 import org.junit.Test;
 import okhttp3.HttpUrl;
@@ -92,4 +94,18 @@ public class HTTPLocationTest {
 		final HTTPLocation loc = new HTTPLocation(TEST_URL, "username", "password");
 		assertEquals(url, loc.getHttpUrl());
 	}
+
+	@Test
+	public void testMirrors() {
+		final HttpUrl url = HttpUrl.parse(TEST_URL);
+		assertEquals(Collections.emptyList(), new HTTPLocation(url).getMirrors());
+
+		final HttpUrl mirror = HttpUrl.parse(
+			"http://mirror.scijava.org/icons/scijava-icon-64.png");
+		final HTTPLocation loc = new HTTPLocation(url, Arrays.asList(mirror));
+		assertEquals(url, loc.getHttpUrl());
+		assertEquals(Arrays.asList(mirror), loc.getMirrors());
+		assertEquals(Arrays.asList(url, mirror), loc.getHttpUrls());
+		assertEquals(new HTTPLocation(url), loc);
+	}
 }
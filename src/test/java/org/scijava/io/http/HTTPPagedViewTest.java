@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+
+import okhttp3.Credentials;
+
+/**
+ * Tests {@link HTTPPagedView}.
+ *
+ * @author agent
+ */
+public class HTTPPagedViewTest {
+
+	private static final int SIZE = 3_000_000;
+	private static final int PAGE_SIZE = 64 * 1024;
+
+	private Context context;
+	private HTTPClientService clientService;
+	private Server server;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		context = new Context(HTTPClientService.class);
+		clientService = context.service(HTTPClientService.class);
+		server = HTTPTestServers.start(new SyntheticResourceHandler(SIZE, true,
+			true)
+		{
+
+			@Override
+			public void handle(final String target, final Request baseRequest,
+				final HttpServletRequest request, final HttpServletResponse response)
+				throws IOException
+			{
+				requests.incrementAndGet();
+				super.handle(target, baseRequest, request, response);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop();
+		context.dispose();
+	}
+
+	@Test(timeout = 30_000)
+	public void testConcurrentReads() throws Exception {
+		final int pages = (SIZE + PAGE_SIZE - 1) / PAGE_SIZE;
+		final ExecutorService pool = Executors.newFixedThreadPool(16);
+		try (final HTTPPagedView view = new HTTPPagedView(clientService,
+			HTTPTestServers.location(server, "/paged"), PAGE_SIZE, pages))
+		{
+			final List<Future<Void>> results = new ArrayList<>();
+			for (int t = 0; t < 16; t++) {
+				final Random random = new Random(t);
+				results.add(pool.submit(() -> {
+					for (int i = 0; i < 200; i++) {
+						final long pos = random.nextInt(SIZE - 10_000);
+						check(view, pos, 1 + random.nextInt(10_000));
+					}
+					return null;
+				}));
+			}
+			for (final Future<Void> result : results) {
+				result.get();
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+		// NB: every page is fetched once, no matter how many threads need it
+		assertTrue("Too many requests: " + requests.get(), requests
+			.get() <= pages);
+	}
+
+	@Test
+	public void testEnd() throws Exception {
+		try (final HTTPPagedView view = new HTTPPagedView(clientService,
+			HTTPTestServers.location(server, "/paged"), PAGE_SIZE, 4))
+		{
+			assertEquals(SIZE, view.length());
+			final ByteBuffer buf = ByteBuffer.allocate(100);
+			assertEquals(10, view.read(SIZE - 10, buf));
+			buf.clear();
+			assertEquals(-1, view.read(SIZE, buf));
+		}
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		try (final HTTPPagedView view = new HTTPPagedView(clientService,
+			HTTPTestServers.location(server, "/paged"), PAGE_SIZE, 2))
+		{
+			for (int i = 0; i < 6; i++) {
+				check(view, (long) i * PAGE_SIZE + 10, PAGE_SIZE);
+			}
+			requests.set(0);
+			check(view, 0, 100);
+			assertEquals(1, requests.get());
+		}
+	}
+
+	@Test
+	public void testPooledPages() throws Exception {
+		final BufferPool pool = clientService.getBufferPool();
+		try (final HTTPPagedView view = new HTTPPagedView(clientService,
+			HTTPTestServers.location(server, "/paged"), PAGE_SIZE, 2))
+		{
+			for (int i = 0; i < 8; i++) {
+				check(view, (long) i * PAGE_SIZE, PAGE_SIZE);
+			}
+			// NB: evicted pages hand their buffers on to the next ones
+			final long allocations = pool.getAllocationCount();
+			for (int i = 8; i < 40; i++) {
+				check(view, (long) i * PAGE_SIZE, PAGE_SIZE);
+			}
+			assertEquals(allocations, pool.getAllocationCount());
+		}
+		assertTrue(pool.getPooledBytes() >= 2 * PAGE_SIZE);
+	}
+
+	@Test(timeout = 15_000)
+	public void testMirrorCredentials() throws Exception {
+		final AuthenticatingHandler alice = new AuthenticatingHandler(SIZE,
+			"alice", "s3cret");
+		final AuthenticatingHandler bob = new AuthenticatingHandler(SIZE, "bob",
+			"hunter2");
+		final Server primary = HTTPTestServers.start(alice);
+		final Server mirror = HTTPTestServers.start(bob);
+		try {
+			final HTTPLocation loc = new HTTPLocation(HTTPTestServers.location(
+				primary, "/alice").getHttpUrl().newBuilder().username("alice")
+				.password("s3cret").build(), Arrays.asList(HTTPTestServers.location(
+					mirror, "/bob").getHttpUrl().newBuilder().username("bob").password(
+						"hunter2").build()));
+			try (final HTTPPagedView view = new HTTPPagedView(clientService, loc,
+				PAGE_SIZE, 4))
+			{
+				for (int i = 0; i < 8; i++) {
+					check(view, (long) i * PAGE_SIZE, 100);
+				}
+			}
+		}
+		finally {
+			primary.stop();
+			mirror.stop();
+		}
+		// NB: each server only ever sees its own credentials
+		assertFalse(alice.getReceivedCredentials().isEmpty());
+		assertFalse(bob.getReceivedCredentials().isEmpty());
+		for (final String credentials : alice.getReceivedCredentials()) {
+			assertEquals(Credentials.basic("alice", "s3cret"), credentials);
+		}
+		for (final String credentials : bob.getReceivedCredentials()) {
+			assertEquals(Credentials.basic("bob", "hunter2"), credentials);
+		}
+	}
+
+	@Test(timeout = 15_000)
+	public void testResourceChanged() throws Exception {
+		final AtomicReference<SyntheticResourceHandler> resource =
+			new AtomicReference<>(new SyntheticResourceHandler(SIZE, true, true));
+		final Server changing = HTTPTestServers.start(new AbstractHandler() {
+
+			@Override
+			public void handle(final String target, final Request baseRequest,
+				final HttpServletRequest request, final HttpServletResponse response)
+				throws IOException
+			{
+				resource.get().handle(target, baseRequest, request, response);
+			}
+		});
+		try {
+			final HTTPLocation loc = HTTPTestServers.location(changing, "/changing");
+			try (final HTTPPagedView before = new HTTPPagedView(clientService, loc,
+				PAGE_SIZE, 4))
+			{
+				check(before, 0, 100);
+				resource.set(new SyntheticResourceHandler(2 * SIZE, true, true));
+				try {
+					check(before, 10 * PAGE_SIZE, 100);
+					fail("Read from a changed resource");
+				}
+				catch (final IOException exc) {
+					// NB: expected
+				}
+				// NB: the change only concerns the view that saw the old resource
+				try (final HTTPPagedView after = new HTTPPagedView(clientService, loc,
+					PAGE_SIZE, 4))
+				{
+					assertEquals(2 * SIZE, after.length());
+					check(after, 10 * PAGE_SIZE, 100);
+					check(after, SIZE + 10, 100);
+				}
+			}
+		}
+		finally {
+			changing.stop();
+		}
+	}
+
+	private static void check(final HTTPPagedView view, final long pos,
+		final int count) throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(count);
+		assertEquals(count, view.read(pos, buf));
+		for (int i = 0; i < count; i++) {
+			if (buf.get(i) != SyntheticResourceHandler.byteAt(pos + i)) {
+				fail("Wrong byte at position " + (pos + i));
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+/**
+ * Utility methods for local Jetty servers standing in for remote ones.
+ *
+ * @author agent
+ */
+public final class HTTPTestServers {
+
+	private HTTPTestServers() {
+		// NB: prevent instantiation of utility class.
+	}
+
+	/**
+	 * Starts a server on a free port that answers every request with the given
+	 * handler.
+	 */
+	public static Server start(final Handler handler) throws Exception {
+		final Server server = new Server();
+		final ServerConnector connector = new ServerConnector(server);
+		connector.setPort(0);
+		server.addConnector(connector);
+		server.setHandler(handler);
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Gets the location of the given path on a started server.
+	 */
+	public static HTTPLocation location(final Server server, final String path)
+		throws URISyntaxException, MalformedURLException
+	{
+		final ServerConnector connector = (ServerConnector) server
+			.getConnectors()[0];
+		String host = connector.getHost();
+		if (host == null) {
+			host = "localhost";
+		}
+		return new HTTPLocation("http://" + host + ":" + connector.getLocalPort() +
+			path);
+	}
+
+	/**
+	 * Gets the number of client connections currently open on a started server.
+	 */
+	public static int openConnections(final Server server) {
+		return server.getConnectors()[0].getConnectedEndPoints().size();
+	}
+}
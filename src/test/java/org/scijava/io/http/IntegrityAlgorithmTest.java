@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import org.junit.Test;
+
+import okhttp3.Headers;
+
+/**
+ * Tests {@link IntegrityAlgorithm}.
+ *
+ * @author agent
+ */
+public class IntegrityAlgorithmTest {
+
+	private static final byte[] DATA = "123456789".getBytes(
+		StandardCharsets.US_ASCII);
+
+	@Test
+	public void testCrc32c() {
+		// NB: check value of CRC-32C, see RFC 3720
+		final MessageDigest digest = IntegrityAlgorithm.CRC32C.newDigest();
+		digest.update(DATA);
+		assertArrayEquals(new byte[] { (byte) 0xe3, 0x06, (byte) 0x92,
+			(byte) 0x83 }, digest.digest());
+	}
+
+	@Test
+	public void testDecode() {
+		final byte[] md5 = md5();
+		final String hex = "25f9e794323b453885f5181f1b624d0b";
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.decode(hex));
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.decode(hex + "  testfile\n"));
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.decode(Base64.getEncoder()
+			.encodeToString(md5)));
+		assertNull(IntegrityAlgorithm.SHA_256.decode(hex));
+		assertNull(IntegrityAlgorithm.MD5.decode("not a digest"));
+	}
+
+	@Test
+	public void testFind() {
+		final byte[] md5 = md5();
+		final String b64 = Base64.getEncoder().encodeToString(md5);
+
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.find(Headers.of("Digest",
+			"SHA-256=abc, MD5=" + b64)));
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.find(Headers.of(
+			"Repr-Digest", "md5=:" + b64 + ":")));
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.find(Headers.of(
+			"Content-MD5", b64)));
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.find(Headers.of(
+			"X-Checksum-Md5", "25f9e794323b453885f5181f1b624d0b")));
+		assertArrayEquals(md5, IntegrityAlgorithm.MD5.find(Headers.of(
+			"x-goog-hash", "crc32c=4waSgw==,md5=" + b64)));
+		assertNull(IntegrityAlgorithm.SHA_256.find(Headers.of("Content-MD5",
+			b64)));
+	}
+
+	private static byte[] md5() {
+		final MessageDigest digest = IntegrityAlgorithm.MD5.newDigest();
+		digest.update(DATA);
+		return digest.digest();
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.io.location.FileLocation;
+import org.scijava.task.Task;
+import org.scijava.task.TaskService;
+
+/**
+ * Tests {@link ParallelDownload}.
+ *
+ * @author agent
+ */
+public class ParallelDownloadTest {
+
+	private static final int SIZE = 1_000_003;
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private Context context;
+	private HTTPClientService clientService;
+	private Server server;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		context = new Context(HTTPClientService.class, TaskService.class);
+		clientService = context.service(HTTPClientService.class);
+		file = new File(Files.createTempDirectory("scijava-http-download")
+			.toFile(), "download");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null) server.stop();
+		context.dispose();
+	}
+
+	@Test(timeout = 30_000)
+	public void testDownload() throws Exception {
+		server = HTTPTestServers.start(new SyntheticResourceHandler(SIZE, true,
+			true));
+		final Task task = context.service(TaskService.class).createTask(
+			"download");
+
+		assertEquals(SIZE, download(4, task));
+		checkFile();
+		assertEquals(SIZE, task.getProgressMaximum());
+		assertEquals(SIZE, task.getProgressValue());
+		assertTrue(task.getStatusMessage().startsWith("Downloading"));
+	}
+
+	@Test(timeout = 30_000)
+	public void testDownloadWithoutRanges() throws Exception {
+		server = HTTPTestServers.start(new SyntheticResourceHandler(SIZE, false,
+			true));
+
+		assertEquals(SIZE, download(4, null));
+		checkFile();
+	}
+
+	@Test(timeout = 30_000)
+	public void testResume() throws Exception {
+		final AtomicBoolean failing = new AtomicBoolean(true);
+		final AtomicLong served = new AtomicLong();
+		server = HTTPTestServers.start(new SyntheticResourceHandler(SIZE, true,
+			true)
+		{
+
+			@Override
+			public void handle(final String target, final Request baseRequest,
+				final HttpServletRequest request, final HttpServletResponse response)
+				throws IOException
+			{
+				final String range = request.getHeader("Range");
+				if (failing.get() && range != null && !range.equals("bytes=0-0") &&
+					Long.parseLong(range.substring(6, range.indexOf('-'))) > SIZE / 2)
+				{
+					baseRequest.setHandled(true);
+					response.setStatus(500);
+					return;
+				}
+				if (range != null && !range.equals("bytes=0-0")) {
+					served.addAndGet(CHUNK_SIZE);
+				}
+				super.handle(target, baseRequest, request, response);
+			}
+		});
+
+		try {
+			download(1, null);
+			fail("Download did not fail");
+		}
+		catch (final IOException exc) {
+			assertEquals("HTTP connection failure, errorcode: 500", exc
+				.getMessage());
+		}
+		assertTrue(ParallelDownload.journalFile(file).exists());
+		final long firstAttempt = served.getAndSet(0);
+		assertTrue(firstAttempt > 0);
+
+		failing.set(false);
+		assertEquals(SIZE, download(4, null));
+		checkFile();
+		assertTrue(served.get() < SIZE - firstAttempt + CHUNK_SIZE);
+		assertFalse(ParallelDownload.journalFile(file).exists());
+	}
+
+	@Test(timeout = 30_000)
+	public void testResumeWithMirrors() throws Exception {
+		final AtomicBoolean failing = new AtomicBoolean(true);
+		final AtomicLong served = new AtomicLong();
+		// NB: the primary is slower, so the mirror is ranked first once measured
+		server = HTTPTestServers.start(new FailingMirror("\"a\"", 100, failing,
+			served));
+		final Server mirror = HTTPTestServers.start(new FailingMirror("\"b\"", 0,
+			failing, served));
+		try {
+			final HTTPLocation source = new HTTPLocation(HTTPTestServers.location(
+				server, "/download").getHttpUrl(), Arrays.asList(HTTPTestServers
+					.location(mirror, "/download").getHttpUrl()));
+			try {
+				new ParallelDownload(clientService, source, new FileLocation(file), 1,
+					CHUNK_SIZE).run(null);
+				fail("Download did not fail");
+			}
+			catch (final IOException exc) {
+				assertEquals("HTTP connection failure, errorcode: 500", exc
+					.getMessage());
+			}
+			final long firstAttempt = served.getAndSet(0);
+			assertTrue(firstAttempt > 0);
+
+			// NB: the chunks are validated by the tag of the primary, which is
+			// asked again although the mirror is faster
+			failing.set(false);
+			assertEquals(SIZE, new ParallelDownload(clientService, source,
+				new FileLocation(file), 4, CHUNK_SIZE).run(null));
+			checkFile();
+			assertTrue(served.get() < SIZE - firstAttempt + CHUNK_SIZE);
+		}
+		finally {
+			mirror.stop();
+		}
+	}
+
+	@Test(timeout = 30_000)
+	public void testWeakETag() throws Exception {
+		final SyntheticResourceHandler handler = new SyntheticResourceHandler(SIZE,
+			true, true);
+		handler.setETag("W/\"weak\"");
+		server = HTTPTestServers.start(handler);
+
+		assertEquals(SIZE, download(4, null));
+		checkFile();
+	}
+
+	@Test(timeout = 30_000)
+	public void testMirrorsWithOtherETags() throws Exception {
+		final List<String> primaryIfRange = new CopyOnWriteArrayList<>();
+		final List<String> mirrorIfRange = new CopyOnWriteArrayList<>();
+		server = HTTPTestServers.start(new IfRangeRecorder("\"a\"",
+			primaryIfRange));
+		final Server mirror = HTTPTestServers.start(new IfRangeRecorder("\"b\"",
+			mirrorIfRange));
+		try {
+			final HTTPLocation source = new HTTPLocation(HTTPTestServers.location(
+				server, "/download").getHttpUrl(), Arrays.asList(HTTPTestServers
+					.location(mirror, "/download").getHttpUrl()));
+			assertEquals(SIZE, new ParallelDownload(clientService, source,
+				new FileLocation(file), 4, CHUNK_SIZE).run(null));
+			checkFile();
+		}
+		finally {
+			mirror.stop();
+		}
+		// NB: a tag is only ever sent to the server it came from
+		assertFalse(primaryIfRange.isEmpty() && mirrorIfRange.isEmpty());
+		assertTrue(primaryIfRange.isEmpty() || mirrorIfRange.isEmpty());
+		for (final String ifRange : primaryIfRange) {
+			assertEquals("\"a\"", ifRange);
+		}
+		for (final String ifRange : mirrorIfRange) {
+			assertEquals("\"b\"", ifRange);
+		}
+	}
+
+	@Test(timeout = 30_000)
+	public void testResourceChanged() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		server = HTTPTestServers.start(new SyntheticResourceHandler(SIZE, true,
+			true)
+		{
+
+			@Override
+			public void handle(final String target, final Request baseRequest,
+				final HttpServletRequest request, final HttpServletResponse response)
+				throws IOException
+			{
+				// NB: the resource changes right after the probe
+				if (requests.incrementAndGet() == 2) setETag("\"changed\"");
+				super.handle(target, baseRequest, request, response);
+			}
+		});
+
+		try {
+			download(1, null);
+			fail("Download did not fail");
+		}
+		catch (final IOException exc) {
+			assertTrue(exc.getMessage().startsWith("Resource changed"));
+		}
+	}
+
+	private long download(final int connections, final Task task)
+		throws Exception
+	{
+		return new ParallelDownload(clientService, HTTPTestServers.location(server,
+			"/download"), new FileLocation(file), connections, CHUNK_SIZE).run(task);
+	}
+
+	private void checkFile() throws IOException {
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		assertEquals(SIZE, bytes.length);
+		for (int i = 0; i < SIZE; i++) {
+			if (bytes[i] != SyntheticResourceHandler.byteAt(i)) {
+				fail("Wrong byte at position " + i);
+			}
+		}
+	}
+
+	/**
+	 * Synthetic resource with the given tag and latency, failing the second
+	 * half of the chunks while asked to.
+	 */
+	private static class FailingMirror extends SyntheticResourceHandler {
+
+		private final long delay;
+		private final AtomicBoolean failing;
+		private final AtomicLong served;
+
+		private FailingMirror(final String etag, final long delay,
+			final AtomicBoolean failing, final AtomicLong served)
+		{
+			super(SIZE, true, true);
+			setETag(etag);
+			this.delay = delay;
+			this.failing = failing;
+			this.served = served;
+		}
+
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException
+		{
+			try {
+				Thread.sleep(delay);
+			}
+			catch (final InterruptedException exc) {
+				throw new IOException(exc);
+			}
+			final String range = request.getHeader("Range");
+			if (range == null || range.equals("bytes=0-0")) {
+				super.handle(target, baseRequest, request, response);
+				return;
+			}
+			if (failing.get() && Long.parseLong(range.substring(6, range.indexOf(
+				'-'))) > SIZE / 2)
+			{
+				baseRequest.setHandled(true);
+				response.setStatus(500);
+				return;
+			}
+			served.addAndGet(CHUNK_SIZE);
+			super.handle(target, baseRequest, request, response);
+		}
+	}
+
+	/** Synthetic resource with the given tag, recording If-Range headers. */
+	private static class IfRangeRecorder extends SyntheticResourceHandler {
+
+		private final List<String> ifRanges;
+
+		private IfRangeRecorder(final String etag, final List<String> ifRanges) {
+			super(SIZE, true, true);
+			setETag(etag);
+			this.ifRanges = ifRanges;
+		}
+
+		@Override
+		public void handle(final String target, final Request baseRequest,
+			final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException
+		{
+			final String ifRange = request.getHeader("If-Range");
+			if (ifRange != null) ifRanges.add(ifRange);
+			super.handle(target, baseRequest, request, response);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * SciJava I/O support for HTTP/HTTPS.
+ * %%
+ * Copyright (C) 2017 KNIME GmbH and Board of Regents of the University
+ * of Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.io.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Jetty handler serving generated content of arbitrary size, without backing
+ * it by a file. Byte {@code i} of the resource is {@link #byteAt(long)}.
+ *
+ * @author agent
+ */
+public class SyntheticResourceHandler extends AbstractHandler {
+
+	private final long length;
+	private final boolean supportsRanges;
+	private final boolean declaresLength;
+	private volatile String etag;
+
+	/**
+	 * @param length the length of the served resource
+	 * @param supportsRanges whether range requests are answered with 206
+	 * @param declaresLength whether the length and an entity tag are revealed
+	 *          in the headers; if not, the body is sent chunked and ranges end
+	 *          in <code>/*</code>
+	 */
+	public SyntheticResourceHandler(final long length,
+		final boolean supportsRanges, final boolean declaresLength)
+	{
+		this.length = length;
+		this.supportsRanges = supportsRanges;
+		this.declaresLength = declaresLength;
+		this.etag = "\"synthetic-" + length + "\"";
+	}
+
+	/**
+	 * Sets the entity tag sent along with the length, e.g. a weak one, or a
+	 * new one to pretend the resource changed. Ranges are only served if an
+	 * <code>If-Range</code> header matches it strongly.
+	 */
+	public void setETag(final String etag) {
+		this.etag = etag;
+	}
+
+	/** Gets the value of the byte at the given position of the resource. */
+	public static byte byteAt(final long pos) {
+		return (byte) (pos % 251);
+	}
+
+	@Override
+	public void handle(final String target, final Request baseRequest,
+		final HttpServletRequest request, final HttpServletResponse response)
+		throws IOException
+	{
+		baseRequest.setHandled(true);
+
+		long start = 0;
+		long end = length - 1;
+		final String range = request.getHeader("Range");
+		final String ifRange = request.getHeader("If-Range");
+		// NB: weak entity tags never match, see RFC 7233
+		final boolean rangeValid = ifRange == null || !ifRange.startsWith("W/") &&
+			ifRange.equals(etag);
+		if (supportsRanges && rangeValid && range != null && range.startsWith(
+			"bytes="))
+		{
+			final String spec = range.substring("bytes=".length());
+			final int dash = spec.indexOf('-');
+			if (dash == 0) { // suffix range
+				start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+			}
+			else {
+				start = Long.parseLong(spec.substring(0, dash));
+				if (dash < spec.length() - 1) {
+					end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+				}
+			}
+			if (start >= length) {
+				response.setStatus(416);
+				return;
+			}
+			response.setStatus(206);
+			response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" +
+				(declaresLength ? String.valueOf(length) : "*"));
+		}
+		else {
+			response.setStatus(200);
+		}
+		if (supportsRanges) response.setHeader("Accept-Ranges", "bytes");
+		if (declaresLength) {
+			response.setHeader("Content-Length", String.valueOf(end - start + 1));
+			response.setHeader("ETag", etag);
+		}
+
+		if ("HEAD".equals(request.getMethod())) {
+			// NB: commit now, or Jetty would declare an empty body
+			if (!declaresLength) response.flushBuffer();
+			return;
+		}
+
+		final byte[] buf = new byte[8192];
+		final OutputStream out = response.getOutputStream();
+		for (long pos = start; pos <= end;) {
+			final int n = (int) Math.min(buf.length, end - pos + 1);
+			for (int i = 0; i < n; i++) {
+				buf[i] = byteAt(pos + i);
+			}
+			out.write(buf, 0, n);
+			pos += n;
+		}
+	}
+}